@@ -0,0 +1,101 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Generated plain text documents used by the benchmarks.
+ * The same seed always gives the same corpus, so results of different runs
+ * can be compared. Every third document is Polish, the rest is English;
+ * the words of both vocabularies below are the ones the benchmark queries look for.
+ */
+public class Corpus {
+
+    public static final String[] ENGLISH = {
+            "river", "stone", "bridge", "window", "garden", "winter", "morning", "letter",
+            "station", "engine", "forest", "harbour", "market", "village", "mountain", "island",
+            "the", "a", "of", "and", "to", "in", "is", "was", "with", "under", "near", "over",
+            "old", "quiet", "small", "green", "broken", "distant", "early", "heavy",
+            "walks", "carries", "builds", "watches", "remembers", "opens", "follows", "waits"};
+    public static final String[] POLISH = {
+            "rzeka", "kamień", "most", "okno", "ogród", "zima", "poranek", "list",
+            "stacja", "silnik", "las", "port", "rynek", "wieś", "góra", "wyspa",
+            "i", "w", "na", "z", "do", "przy", "nad", "pod", "jest", "był", "oraz", "przez",
+            "stary", "cichy", "mały", "zielony", "złamany", "daleki", "wczesny", "ciężki",
+            "idzie", "niesie", "buduje", "patrzy", "pamięta", "otwiera", "czeka", "wraca"};
+
+    private static final int FILES_PER_DIRECTORY = 50;
+
+    private Corpus() {}
+
+    /** Writes @p documents files of about @p words words each into subdirectories of @p root.
+     *
+     * @return Paths of the written files, in the order they were written.
+     */
+    public static List<Path> generate(Path root, int documents, int words, long seed) throws IOException {
+        Random random = new Random(seed);
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < documents; i++) {
+            Path directory = root.resolve("dir" + i / FILES_PER_DIRECTORY);
+            Files.createDirectories(directory);
+            String[] vocabulary = i % 3 == 2 ? POLISH : ENGLISH;
+            Path file = directory.resolve("doc" + i + ".txt");
+            Files.write(file, text(random, vocabulary, words).getBytes(StandardCharsets.UTF_8));
+            files.add(file);
+        }
+        return files;
+    }
+
+    /// Sentences of 6 to 15 words drawn from @p vocabulary.
+    static String text(Random random, String[] vocabulary, int words) {
+        StringBuilder text = new StringBuilder();
+        int sentence = 0;
+        int length = 6 + random.nextInt(10);
+        for (int i = 0; i < words; i++) {
+            String word = vocabulary[random.nextInt(vocabulary.length)];
+            if (sentence == 0) {
+                word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+            }
+            text.append(word);
+            if (++sentence == length) {
+                text.append(".\n");
+                sentence = 0;
+                length = 6 + random.nextInt(10);
+            }
+            else {
+                text.append(' ');
+            }
+        }
+        return text.toString();
+    }
+
+    /// Removes @p root with everything below it.
+    public static void delete(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
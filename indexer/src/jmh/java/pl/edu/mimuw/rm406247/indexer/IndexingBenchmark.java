@@ -0,0 +1,139 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.indexer;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import pl.edu.mimuw.rm406247.Corpus;
+import pl.edu.mimuw.rm406247.IndexerUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Cost of adding documents to the index, as a whole and stage by stage:
+ * type detection, parsing, language detection and analysis of the body.
+ * The whole add path reports documents per second; the stages report
+ * the average time for one document of the corpus.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class IndexingBenchmark {
+
+    private static final int DOCUMENTS = 500;
+
+    @Param({"300"})
+    public int words;
+
+    private Path corpusRoot;
+    private List<Path> files;
+    private List<String> heads;
+    private List<String> langs;
+    private Analyzer analyzer;
+    private int next;
+
+    /** Empty index for one measured add. A state of its own, so that only add() pays
+     * for opening and deleting an index around every call, not the stage benchmarks.
+     */
+    @State(Scope.Thread)
+    public static class EmptyIndex {
+        private Path indexPath;
+        private Indexer indexer;
+
+        @Setup(Level.Invocation)
+        public void open() throws IOException {
+            indexPath = Files.createTempDirectory("indexer-index");
+            indexer = new Indexer(indexPath);
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() throws IOException {
+            indexer.close();
+            Corpus.delete(indexPath);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void generateCorpus() throws IOException {
+        corpusRoot = Files.createTempDirectory("indexer-corpus");
+        files = Corpus.generate(corpusRoot, DOCUMENTS, words, 42);
+        heads = new ArrayList<>();
+        langs = new ArrayList<>();
+        FileClassifier classifier = FileClassifier.get();
+        for (int i = 0; i < files.size(); i++) {
+            try (ExtractedText text = ExtractedText.read(
+                    classifier.tika().parse(files.get(i)), IndexerUtils.storedChars())) {
+                heads.add(text.head());
+            }
+            langs.add(i % 3 == 2 ? "pl" : "en");
+        }
+        analyzer = IndexerUtils.defaultAnalyzer();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCorpus() throws IOException {
+        Corpus.delete(corpusRoot);
+    }
+
+    /// Documents per second of --add on the whole corpus into an empty index, commit included.
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(DOCUMENTS)
+    public void add(EmptyIndex index) {
+        index.indexer.add(corpusRoot);
+    }
+
+    private int nextDocument() {
+        next = (next + 1) % files.size();
+        return next;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean detectType() throws IOException {
+        return FileClassifier.get().isIndexable(files.get(nextDocument()));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String parse() throws IOException {
+        try (ExtractedText text = ExtractedText.read(
+                FileClassifier.get().tika().parse(files.get(nextDocument())), IndexerUtils.storedChars())) {
+            return text.head();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public LanguageService.Detection detectLanguage() {
+        return LanguageService.get().detect(heads.get(nextDocument()));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void analyze(Blackhole blackhole) throws IOException {
+        int document = nextDocument();
+        try (TokenStream stream = analyzer.tokenStream("body-" + langs.get(document), heads.get(document))) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                blackhole.consume(term);
+            }
+            stream.end();
+        }
+    }
+}
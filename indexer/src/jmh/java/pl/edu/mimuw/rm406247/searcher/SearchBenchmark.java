@@ -0,0 +1,100 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.searcher;
+
+import org.openjdk.jmh.annotations.*;
+import pl.edu.mimuw.rm406247.Corpus;
+import pl.edu.mimuw.rm406247.IndexerUtils;
+import pl.edu.mimuw.rm406247.indexer.Indexer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** Latency of queries of every type on a generated corpus, without and with
+ * highlighting of the matches, using the same SearchService as the console and the server.
+ * Every call sends the same request, so the result cache is turned off: otherwise
+ * all calls but the first would measure a cache hit.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx1g", "-Dsearcher.cache.hits=0"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SearchBenchmark {
+
+    @Param({"2000"})
+    public int documents;
+
+    @Param({"TERM", "PHRASE", "FUZZY", "PREFIX"})
+    public Searcher.QueryType type;
+
+    @Param({"10"})
+    public int limit;
+
+    private Path corpusRoot;
+    private Path indexPath;
+    private SearchService service;
+    private SearchRequest plain;
+    private SearchRequest offsets;
+    private SearchRequest analysis;
+
+    @Setup(Level.Trial)
+    public void index() throws IOException {
+        corpusRoot = Files.createTempDirectory("searcher-corpus");
+        indexPath = Files.createTempDirectory("searcher-index");
+        Corpus.generate(corpusRoot, documents, 300, 42);
+        Indexer indexer = new Indexer(indexPath);
+        indexer.addToIndexedPaths(corpusRoot);
+        indexer.close();
+
+        service = new SearchService(indexPath, IndexerUtils.defaultAnalyzer());
+        service.prepare("en");
+        String text;
+        switch (type) {
+            case PHRASE:
+                text = "quiet river";
+                break;
+            case FUZZY:
+                text = "rivr";
+                break;
+            case PREFIX:
+                // prefix queries select a directory of the index
+                text = corpusRoot.resolve("dir0").toString();
+                break;
+            default:
+                text = "river";
+        }
+        plain = new SearchRequest(type, "en", text, limit, null, false, false, Searcher.HighlightMode.OFFSETS);
+        offsets = new SearchRequest(type, "en", text, limit, null, true, false, Searcher.HighlightMode.OFFSETS);
+        analysis = new SearchRequest(type, "en", text, limit, null, true, false, Searcher.HighlightMode.ANALYSIS);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        service.close();
+        Corpus.delete(corpusRoot);
+        Corpus.delete(indexPath);
+    }
+
+    /// Only the matching paths, as printed with details off.
+    @Benchmark
+    public SearchResult search() throws IOException {
+        return service.search(plain);
+    }
+
+    /// Paths with fragments highlighted from the offsets stored in the index.
+    @Benchmark
+    public SearchResult highlightOffsets() throws IOException {
+        return service.search(offsets);
+    }
+
+    /// Paths with fragments highlighted by analysing the stored text again.
+    @Benchmark
+    public SearchResult highlightAnalysis() throws IOException {
+        return service.search(analysis);
+    }
+}
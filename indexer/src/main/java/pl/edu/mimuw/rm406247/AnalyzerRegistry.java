@@ -0,0 +1,142 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.DelegatingAnalyzerWrapper;
+import org.apache.lucene.analysis.core.LowerCaseFilterFactory;
+import org.apache.lucene.analysis.custom.CustomAnalyzer;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.analysis.pl.PolishAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.standard.StandardTokenizerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/** Analyzer of all fields of the index. Languages are registered with
+ * the analyzer of their body field (body-<lang>); the analyzer is created
+ * only when a field of the language is analyzed for the first time, so
+ * dictionaries of languages which are not used are never loaded.
+ * Titles and the words completed by the searcher (words-<lang>) of every language
+ * are only tokenized and lowercased.
+ *
+ * Besides en and pl, languages can be registered without changing the code with
+ * -Dindexer.analyzers=<lang>=<analyzer class>[,<lang>=<analyzer class>...],
+ * e.g. -Dindexer.analyzers=de=org.apache.lucene.analysis.de.GermanAnalyzer
+ */
+public class AnalyzerRegistry extends DelegatingAnalyzerWrapper {
+
+    private static final Map<String, Supplier<Analyzer>> bodyAnalyzers = new ConcurrentHashMap<>();
+    private static final List<String> languages = new ArrayList<>();
+
+    static {
+        register("pl", PolishAnalyzer::new);
+        register("en", EnglishAnalyzer::new);
+        String property = System.getProperty("indexer.analyzers");
+        if (property != null && !property.trim().isEmpty()) {
+            for (String entry : property.split(",")) {
+                String[] parts = entry.trim().split("=");
+                if (parts.length != 2) {
+                    System.err.println("Invalid indexer.analyzers entry: " + entry);
+                    continue;
+                }
+                register(parts[0].trim(), () -> instantiate(parts[1].trim()));
+            }
+        }
+    }
+
+    private final Map<String, Analyzer> analyzers = new ConcurrentHashMap<>();
+
+    public AnalyzerRegistry() {
+        super(PER_FIELD_REUSE_STRATEGY);
+    }
+
+    /** Makes documents in @p lang indexed and searchable, with @p bodyAnalyzer
+     * creating the analyzer of their text. Registering a language again replaces its analyzer.
+     */
+    public static synchronized void register(String lang, Supplier<Analyzer> bodyAnalyzer) {
+        if (bodyAnalyzers.put(lang, bodyAnalyzer) == null) {
+            languages.add(lang);
+        }
+    }
+
+    /// Registered languages, in the order of registration.
+    public static synchronized List<String> languages() {
+        return new ArrayList<>(languages);
+    }
+
+    public static boolean isRegistered(String lang) {
+        return bodyAnalyzers.containsKey(lang);
+    }
+
+    @Override
+    protected Analyzer getWrappedAnalyzer(String fieldName) {
+        String key;
+        if (fieldName.startsWith("body-") && isRegistered(fieldName.substring("body-".length()))) {
+            key = fieldName;
+        }
+        else if (fieldName.startsWith("title-") || fieldName.startsWith("words-")) {
+            key = "title";
+        }
+        else {
+            key = "default";
+        }
+        Analyzer analyzer = analyzers.get(key);
+        if (analyzer == null) {
+            analyzer = analyzers.computeIfAbsent(key, this::load);
+        }
+        return analyzer;
+    }
+
+    /// Creates the analyzer of @p key, reporting how long loading a language took.
+    private Analyzer load(String key) {
+        long start = System.nanoTime();
+        Analyzer analyzer;
+        if (key.equals("title")) {
+            try {
+                analyzer = CustomAnalyzer.builder()
+                        .withTokenizer(StandardTokenizerFactory.class)
+                        .addTokenFilter(LowerCaseFilterFactory.class)
+                        .build();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        else if (key.equals("default")) {
+            analyzer = new StandardAnalyzer();
+        }
+        else {
+            String lang = key.substring("body-".length());
+            analyzer = bodyAnalyzers.get(lang).get();
+            long nanos = System.nanoTime() - start;
+            Metrics.timer("analyzer.load").record(nanos);
+            System.err.println(String.format("Loaded %s analyzer in %.0f ms.", lang, nanos / 1e6));
+        }
+        return analyzer;
+    }
+
+    private static Analyzer instantiate(String className) {
+        try {
+            return (Analyzer) Class.forName(className).getConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Could not create analyzer " + className + ": " + e, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Analyzer analyzer : analyzers.values()) {
+            analyzer.close();
+        }
+        super.close();
+    }
+}
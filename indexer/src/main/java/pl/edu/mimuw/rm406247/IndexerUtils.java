@@ -4,26 +4,20 @@
 package pl.edu.mimuw.rm406247;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.core.LowerCaseFilterFactory;
-import org.apache.lucene.analysis.custom.CustomAnalyzer;
-import org.apache.lucene.analysis.en.EnglishAnalyzer;
-import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
-import org.apache.lucene.analysis.pl.PolishAnalyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.analysis.standard.StandardTokenizerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Map;
-import java.util.TreeMap;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
 
 public class IndexerUtils {
 
     private static Path indexPath = null;
-    private static PerFieldAnalyzerWrapper defaultAnalyzer = null;
-    public static final String[] languages = {"pl", "en"};
+    private static AnalyzerRegistry defaultAnalyzer = null;
 
     public static Path indexPath() {
         if (indexPath == null) {
@@ -35,25 +29,129 @@ public class IndexerUtils {
         return indexPath;
     }
 
-    public static Analyzer defaultAnalyzer() throws IOException{
+    /** Analyzer of all fields, languages are loaded when they are first used.
+     * @see AnalyzerRegistry
+     */
+    public static synchronized Analyzer defaultAnalyzer() {
         if (defaultAnalyzer == null) {
-            Analyzer titleAnalyzer;
-            titleAnalyzer = CustomAnalyzer.builder()
-                    .withTokenizer(StandardTokenizerFactory.class)
-                    .addTokenFilter(LowerCaseFilterFactory.class)
-                    .build();
-
-            Map<String, Analyzer> analyzerMap = new TreeMap<>();
-            analyzerMap.put("body-en", new EnglishAnalyzer());
-            analyzerMap.put("body-pl", new PolishAnalyzer());
-            for (String lang : languages) {
-                analyzerMap.put("title-" + lang, titleAnalyzer);
-            }
-            defaultAnalyzer = new PerFieldAnalyzerWrapper(new StandardAnalyzer(), analyzerMap);
+            defaultAnalyzer = new AnalyzerRegistry();
         }
         return defaultAnalyzer;
     }
 
+    /** Number of extraction workers used by the indexer.
+     * Can be overridden with -Dindexer.threads=<n>.
+     */
+    public static int indexingThreads() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String property = System.getProperty("indexer.threads");
+        if (property != null) {
+            try {
+                threads = Integer.parseInt(property.trim());
+            }
+            catch (NumberFormatException e) {
+                System.err.println("Invalid indexer.threads value: " + property);
+            }
+        }
+        return Math.max(1, threads);
+    }
+
+    /** Number of directories listed at once while walking file trees,
+     * -Dindexer.crawl.threads=<n>, by default the number of cores but at least 4,
+     * as listing mostly waits for the file system.
+     */
+    public static int crawlThreads() {
+        int threads = Integer.getInteger("indexer.crawl.threads",
+                Math.max(4, Runtime.getRuntime().availableProcessors()));
+        return Math.max(1, threads);
+    }
+
+    /** Whether indexed files are fingerprinted with a content hash
+     * in addition to size and modification time (-Dindexer.hash=true).
+     */
+    public static boolean hashFingerprints() {
+        return Boolean.getBoolean("indexer.hash");
+    }
+
+    /** Number of characters of every document stored in the index
+     * (and shown by the searcher), -Dindexer.store.chars=<n>.
+     */
+    public static int storedChars() {
+        return Integer.getInteger("indexer.store.chars", 1000000);
+    }
+
+    /** Number of characters of every document which are indexed,
+     * -Dindexer.index.chars=<n>, unlimited by default.
+     */
+    public static long indexedChars() {
+        return Long.getLong("indexer.index.chars", Long.MAX_VALUE);
+    }
+
+    /** Number of files after which --reindex saves its progress with a commit,
+     * -Dindexer.checkpoint.files=<n>.
+     */
+    public static int checkpointFiles() {
+        return Math.max(1, Integer.getInteger("indexer.checkpoint.files", 10000));
+    }
+
+    /** Milliseconds after which --reindex saves its progress even if fewer files were done,
+     * -Dindexer.checkpoint.interval=<ms>.
+     */
+    public static long checkpointInterval() {
+        return Math.max(0, Long.getLong("indexer.checkpoint.interval", 60000));
+    }
+
+    /** Directory holding one index per root (a shard) next to the main index at @p indexPath.
+     * Roots get a shard when they are added with -Dindexer.shard.roots=true; their documents
+     * are then written, reindexed and purged without touching the segments of other roots.
+     */
+    public static Path shardsPath(Path indexPath) {
+        return indexPath.resolve("shards");
+    }
+
+    /// Whether roots added from now on get a shard of their own (-Dindexer.shard.roots=true).
+    public static boolean shardRoots() {
+        return Boolean.getBoolean("indexer.shard.roots");
+    }
+
+    /** Whether the indexer leaves out the line printed for every added,
+     * updated or removed file (-Dindexer.quiet=true), which slows down big runs.
+     */
+    public static boolean quiet() {
+        return Boolean.getBoolean("indexer.quiet");
+    }
+
+    /// Random hexadecimal token, which clients of a local server prove they may read its files with.
+    public static String randomToken() {
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder token = new StringBuilder();
+        for (byte b : random) {
+            token.append(String.format("%02x", b));
+        }
+        return token.toString();
+    }
+
+    /** Writes @p contents to @p file, which is created anew and readable by its owner only
+     * before anything is written to it. Used for files holding access tokens.
+     */
+    public static void writePrivate(Path file, String contents) throws IOException {
+        Files.deleteIfExists(file);
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        catch (UnsupportedOperationException e) {
+            // not a POSIX file system, restrict what can be restricted there
+            Files.createFile(file);
+            File created = file.toFile();
+            created.setReadable(false, false);
+            created.setReadable(true, true);
+            created.setWritable(false, false);
+            created.setWritable(true, true);
+        }
+        Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+    }
+
     public static boolean argCheck(String[] args, int pos, String expected, int total_args) {
         if (total_args == args.length) {
             return args[pos].equals(expected);
@@ -0,0 +1,269 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Process-wide counters and latency histograms of the indexer and the searcher.
+ * Every metric is registered as an MBean named pl.edu.mimuw.rm406247:type=<group>,name=<name>
+ * (e.g. jconsole shows them under pl.edu.mimuw.rm406247/indexer/parse), and
+ * -Dindexer.metrics.log=<seconds> prints all of them to the standard error periodically.
+ * Recording is lock-free, so metrics can be updated from every worker thread.
+ */
+public final class Metrics {
+
+    private static final String DOMAIN = "pl.edu.mimuw.rm406247";
+
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService logger = null;
+
+    public interface CounterMBean {
+        long getCount();
+    }
+
+    public interface TimerMBean {
+        long getCount();
+
+        double getTotalMillis();
+
+        double getMeanMillis();
+
+        double getMaxMillis();
+
+        double getMedianMillis();
+
+        double get90thPercentileMillis();
+
+        double get99thPercentileMillis();
+    }
+
+    public static class Counter implements CounterMBean {
+        private final LongAdder count = new LongAdder();
+
+        private Counter() {}
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long value) {
+            count.add(value);
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+    }
+
+    /** Number, total time and distribution of the durations of one operation.
+     * Durations are counted in buckets four per power of two, so percentiles
+     * are reported with at most 25% error, rounded up.
+     */
+    public static class Timer implements TimerMBean {
+        private static final int BUCKETS = 64 * 4;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        private Timer() {}
+
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            count.increment();
+            this.nanos.add(nanos);
+            max.accumulate(nanos);
+            buckets.incrementAndGet(bucket(nanos));
+        }
+
+        /// Records the time elapsed since @p start, a value of System.nanoTime().
+        public void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        public long totalNanos() {
+            return nanos.sum();
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public double getTotalMillis() {
+            return nanos.sum() / 1e6;
+        }
+
+        @Override
+        public double getMeanMillis() {
+            long count = getCount();
+            return count == 0 ? 0 : nanos.sum() / 1e6 / count;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return max.get() / 1e6;
+        }
+
+        @Override
+        public double getMedianMillis() {
+            return percentile(0.5) / 1e6;
+        }
+
+        @Override
+        public double get90thPercentileMillis() {
+            return percentile(0.9) / 1e6;
+        }
+
+        @Override
+        public double get99thPercentileMillis() {
+            return percentile(0.99) / 1e6;
+        }
+
+        /// Upper bound of the bucket holding the @p fraction of durations, 0 if there are none.
+        long percentile(double fraction) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        static int bucket(long nanos) {
+            if (nanos < 4) {
+                return (int) nanos;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int fraction = (int) (nanos >>> (exponent - 2)) & 3;
+            return exponent * 4 + fraction;
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < 4) {
+                return bucket;
+            }
+            int exponent = bucket / 4;
+            long fraction = bucket % 4;
+            if (exponent >= 62) {
+                return Long.MAX_VALUE;
+            }
+            return ((5 + fraction) << (exponent - 2)) - 1;
+        }
+    }
+
+    private Metrics() {}
+
+    /// Counter named @p name, "<group>.<name>", created and registered on first use.
+    public static Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(name, key -> register(key, new Counter(), CounterMBean.class));
+        }
+        return counter;
+    }
+
+    /// Timer named @p name, "<group>.<name>", created and registered on first use.
+    public static Timer timer(String name) {
+        Timer timer = timers.get(name);
+        if (timer == null) {
+            timer = timers.computeIfAbsent(name, key -> register(key, new Timer(), TimerMBean.class));
+        }
+        return timer;
+    }
+
+    private static <I, T extends I> T register(String name, T metric, Class<I> type) {
+        int dot = name.indexOf('.');
+        String group = dot < 0 ? "general" : name.substring(0, dot);
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + group + ",name=" + name.substring(dot + 1));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(metric, type), objectName);
+        }
+        catch (JMException e) {
+            System.err.println("Could not register metric " + name + " over JMX.");
+            System.err.println(e.getMessage());
+        }
+        return metric;
+    }
+
+    /// One line per metric which was used, sorted by name.
+    public static String report() {
+        StringBuilder result = new StringBuilder("Metrics:");
+        new TreeMap<>(counters).forEach((name, counter) -> {
+            if (counter.getCount() > 0) {
+                result.append(System.lineSeparator()).append("    ").append(name).append(": ").append(counter.getCount());
+            }
+        });
+        new TreeMap<>(timers).forEach((name, timer) -> {
+            if (timer.getCount() > 0) {
+                result.append(System.lineSeparator()).append(String.format(Locale.ROOT,
+                        "    %s: %d in %.1f ms (mean %.3f ms, p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms)",
+                        name, timer.getCount(), timer.getTotalMillis(), timer.getMeanMillis(),
+                        timer.getMedianMillis(), timer.get90thPercentileMillis(),
+                        timer.get99thPercentileMillis(), timer.getMaxMillis()));
+            }
+        });
+        return result.toString();
+    }
+
+    /** Starts printing report() every -Dindexer.metrics.log=<seconds> seconds and once more
+     * when the JVM exits, does nothing if the property is not set.
+     * The printing thread does not keep the JVM running.
+     */
+    public static synchronized void startLog() {
+        String property = System.getProperty("indexer.metrics.log");
+        if (logger != null || property == null) {
+            return;
+        }
+        long seconds;
+        try {
+            seconds = Long.parseLong(property.trim());
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Invalid indexer.metrics.log value: " + property);
+            return;
+        }
+        if (seconds <= 0) {
+            return;
+        }
+        logger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.scheduleAtFixedRate(() -> System.err.println(report()), seconds, seconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(report()), "metrics-report"));
+    }
+}
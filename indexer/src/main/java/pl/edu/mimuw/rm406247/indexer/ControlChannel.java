@@ -0,0 +1,198 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.indexer;
+
+import pl.edu.mimuw.rm406247.IndexerUtils;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/** Lets command line invocations of the indexer run on the writer of a running watcher.
+ * The watcher listens on a loopback port, which is written together with a random
+ * token to the control file in the index directory, readable by its owner only.
+ * A client sends the token and its arguments, one per line, followed by an empty
+ * line. The output of the command is streamed back and ends with a line holding
+ * EXIT_MARKER and the exit status.
+ * Requests are queued and taken by the watcher between its own events.
+ */
+class ControlChannel implements AutoCloseable {
+
+    static final String CONTROL_FILE = "indexer.control";
+    private static final String EXIT_MARKER = "\u0000exit ";
+    /// Milliseconds a client has to send its request.
+    private static final int REQUEST_TIMEOUT = 5000;
+
+    /// Command forwarded by a client.
+    static class Request {
+
+        private final List<String> args;
+        private final PrintStream out;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile int status = 1;
+
+        private Request(List<String> args, PrintStream out) {
+            this.args = args;
+            this.out = out;
+        }
+
+        String[] args() {
+            return args.toArray(new String[0]);
+        }
+
+        /// Stream sending its output to the client.
+        PrintStream out() {
+            return out;
+        }
+
+        void finish(int status) {
+            this.status = status;
+            done.countDown();
+        }
+    }
+
+    private final Path controlFile;
+    private final ServerSocket serverSocket;
+    private final String token;
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+
+    ControlChannel(Path indexPath) throws IOException {
+        this.controlFile = indexPath.resolve(CONTROL_FILE);
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.token = IndexerUtils.randomToken();
+        IndexerUtils.writePrivate(controlFile, serverSocket.getLocalPort() + " " + this.token);
+        Thread acceptor = new Thread(this::acceptLoop, "indexer-control");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /// Next forwarded command, null if there is none.
+    Request poll() {
+        return requests.poll();
+    }
+
+    /// Clients are served one at a time, the rest wait in the backlog of the socket.
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try (Socket socket = serverSocket.accept()) {
+                serve(socket);
+            }
+            catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Control channel error.");
+                    System.err.println(e.getMessage());
+                }
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException, InterruptedException {
+        socket.setSoTimeout(REQUEST_TIMEOUT);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        PrintStream out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+        if (!token.equals(in.readLine())) {
+            out.println("Invalid control token.");
+            out.println(EXIT_MARKER + 1);
+            return;
+        }
+        List<String> args = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+            args.add(line);
+        }
+        socket.setSoTimeout(0);
+        Request request = new Request(args, out);
+        requests.add(request);
+        request.done.await();
+        out.println(EXIT_MARKER + request.status);
+    }
+
+    /** Runs @p args on the watcher of the index at @p indexPath, copying its output to System.out.
+     *
+     * @return Exit status of the command, -1 if no watcher is running.
+     */
+    static int forward(Path indexPath, String[] args) {
+        Path controlFile = indexPath.resolve(CONTROL_FILE);
+        if (!Files.isReadable(controlFile)) {
+            return -1;
+        }
+        int port;
+        String token;
+        try {
+            String[] contents = new String(Files.readAllBytes(controlFile), StandardCharsets.UTF_8).trim().split(" ");
+            port = Integer.parseInt(contents[0]);
+            token = contents[1];
+        }
+        catch (IOException | RuntimeException e) {
+            return -1;
+        }
+        Socket socket;
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        }
+        catch (IOException e) {
+            return -1; // left behind by a watcher which is gone
+        }
+        try {
+            PrintStream out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+            out.println(token);
+            for (String arg : args) {
+                out.println(arg);
+            }
+            out.println();
+            System.out.println("Forwarding to the running watcher.");
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(EXIT_MARKER)) {
+                    return Integer.parseInt(line.substring(EXIT_MARKER.length()));
+                }
+                System.out.println(line);
+            }
+            System.err.println("The watcher stopped before finishing the command.");
+            return 1;
+        }
+        catch (IOException e) {
+            System.err.println("Lost connection to the watcher.");
+            System.err.println(e.getMessage());
+            return 1;
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                // the command is over anyway
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            Files.deleteIfExists(controlFile);
+            serverSocket.close();
+        }
+        catch (IOException e) {
+            // nothing more can be done
+        }
+        Request request;
+        while ((request = requests.poll()) != null) {
+            request.out().println("The watcher is shutting down.");
+            request.finish(1);
+        }
+    }
+}
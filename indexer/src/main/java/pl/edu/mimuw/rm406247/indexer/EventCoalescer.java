@@ -0,0 +1,273 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.indexer;
+
+import pl.edu.mimuw.rm406247.IndexerUtils;
+import pl.edu.mimuw.rm406247.Metrics;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+
+/** Collects watch events and applies them to the index in batches.
+ * Repeated events for one path are collapsed while they wait, the batch is
+ * applied once its oldest event is @p window milliseconds old or it grows to
+ * @p maxBatch paths. Directories whose events were lost are reconciled with
+ * the index instead, at most once per @p rescanInterval milliseconds each.
+ * Changes are committed once @p commitEvery of them were applied or the oldest
+ * uncommitted one is @p commitInterval milliseconds old.
+ */
+class EventCoalescer implements AutoCloseable {
+
+    private static final Metrics.Counter EVENTS = Metrics.counter("watcher.events");
+    private static final Metrics.Timer BATCH = Metrics.timer("watcher.batch");
+    private static final Metrics.Timer RESCAN = Metrics.timer("watcher.rescan");
+
+    enum Action {
+        ADD,
+        REMOVE,
+        REPLACE;
+
+        /// Action equivalent to performing @p this and then @p next.
+        Action then(Action next) {
+            if (next == ADD && this != ADD) {
+                return REPLACE;
+            }
+            return next;
+        }
+    }
+
+    private final Indexer indexer;
+    private final long window;
+    private final int maxBatch;
+    private final long commitInterval;
+    private final int commitEvery;
+    private final long rescanInterval;
+    private final Consumer<Path> beforeRescan;
+    private final boolean quiet = IndexerUtils.quiet();
+
+    private final Map<Path, Action> pending = new LinkedHashMap<>();
+    private final Set<Path> rescans = new LinkedHashSet<>();
+    private final Map<Path, Long> lastRescan = new HashMap<>();
+    private long batchStart;
+    private long uncommittedSince;
+    private int uncommitted;
+
+    private long received;
+    private long coalesced;
+    private long applied;
+    private long commits;
+    private long overflows;
+    private long rescanned;
+
+    /**
+     * @param beforeRescan - called with the directory right before it is reconciled.
+     */
+    EventCoalescer(Indexer indexer, long window, int maxBatch, long commitInterval, int commitEvery,
+                   long rescanInterval, Consumer<Path> beforeRescan) {
+        this.indexer = indexer;
+        this.window = window;
+        this.maxBatch = maxBatch;
+        this.commitInterval = commitInterval;
+        this.commitEvery = commitEvery;
+        this.rescanInterval = rescanInterval;
+        this.beforeRescan = beforeRescan;
+    }
+
+    void post(Path path, Action action) {
+        received++;
+        EVENTS.increment();
+        if (pending.isEmpty()) {
+            batchStart = System.currentTimeMillis();
+        }
+        // re-inserting moves the path to the end, so that the batch
+        // replays changes in the order of their latest events
+        Action previous = pending.remove(path);
+        if (previous != null) {
+            coalesced++;
+            pending.put(path, previous.then(action));
+        }
+        else {
+            pending.put(path, action);
+        }
+        if (pending.size() >= maxBatch) {
+            flush();
+        }
+    }
+
+    /** Schedules reconciliation of @p dir, whose events were lost.
+     * Requests for directories already covered by a scheduled ancestor are dropped.
+     */
+    void postRescan(Path dir) {
+        overflows++;
+        for (Path scheduled : rescans) {
+            if (dir.startsWith(scheduled)) {
+                return;
+            }
+        }
+        rescans.removeIf(scheduled -> scheduled.startsWith(dir));
+        rescans.add(dir);
+    }
+
+    /** Applies the pending batch and commits if any of the limits was reached.
+     */
+    void tick() {
+        long now = System.currentTimeMillis();
+        if (!pending.isEmpty() && now - batchStart >= window) {
+            flush();
+        }
+        if (!rescans.isEmpty()) {
+            rescan(now);
+        }
+        if (uncommitted > 0 && (uncommitted >= commitEvery || now - uncommittedSince >= commitInterval)) {
+            commit();
+        }
+    }
+
+    /// Milliseconds until tick() has something to do, -1 if nothing is waiting.
+    long millisUntilDue() {
+        long now = System.currentTimeMillis();
+        long due = Long.MAX_VALUE;
+        if (!pending.isEmpty()) {
+            due = batchStart + window;
+        }
+        if (uncommitted > 0) {
+            due = Math.min(due, uncommittedSince + commitInterval);
+        }
+        for (Path dir : rescans) {
+            due = Math.min(due, rescanDue(dir));
+        }
+        return due == Long.MAX_VALUE ? -1 : Math.max(0, due - now);
+    }
+
+    private void flush() {
+        if (uncommitted == 0) {
+            uncommittedSince = System.currentTimeMillis();
+        }
+        long start = System.nanoTime();
+        for (Map.Entry<Path, Action> entry : pending.entrySet()) {
+            Path path = entry.getKey();
+            switch (entry.getValue()) {
+                case REMOVE:
+                    print("Removing ", path);
+                    indexer.removeWithoutCommit(path);
+                    break;
+                case REPLACE:
+                    print("Removing index ", path);
+                    indexer.removeWithoutCommit(path);
+                    print("Adding index ", path);
+                    indexer.addWithoutCommit(path);
+                    break;
+                case ADD:
+                    print("Adding index ", path);
+                    indexer.addWithoutCommit(path);
+                    break;
+            }
+            applied++;
+            uncommitted++;
+        }
+        pending.clear();
+        BATCH.recordSince(start);
+        if (uncommitted >= commitEvery) {
+            commit();
+        }
+    }
+
+    private void print(String action, Path path) {
+        if (!quiet) {
+            System.out.println(action + path.toAbsolutePath().toString());
+        }
+    }
+
+    private long rescanDue(Path dir) {
+        Long last = lastRescan.get(dir);
+        return last == null ? 0 : last + rescanInterval;
+    }
+
+    /// Reconciles every scheduled directory which was not reconciled recently.
+    private void rescan(long now) {
+        Iterator<Path> iterator = rescans.iterator();
+        while (iterator.hasNext()) {
+            Path dir = iterator.next();
+            if (rescanDue(dir) > now) {
+                continue;
+            }
+            iterator.remove();
+            if (!pending.isEmpty()) {
+                flush();
+            }
+            if (uncommitted == 0) {
+                uncommittedSince = System.currentTimeMillis();
+            }
+            if (!quiet) {
+                System.out.println("Events lost, rescanning " + dir.toAbsolutePath().toString());
+            }
+            long start = System.nanoTime();
+            beforeRescan.accept(dir);
+            indexer.reconcileWithoutCommit(dir);
+            RESCAN.recordSince(start);
+            lastRescan.put(dir, System.currentTimeMillis());
+            rescanned++;
+            uncommitted++;
+        }
+    }
+
+    private void commit() {
+        indexer.commit();
+        commits++;
+        uncommitted = 0;
+        if (!quiet) {
+            System.out.println(stats());
+        }
+    }
+
+    long received() {
+        return received;
+    }
+
+    long coalesced() {
+        return coalesced;
+    }
+
+    long applied() {
+        return applied;
+    }
+
+    long commits() {
+        return commits;
+    }
+
+    long overflows() {
+        return overflows;
+    }
+
+    long rescanned() {
+        return rescanned;
+    }
+
+    String stats() {
+        return "Events received: " + received
+                + ", coalesced: " + coalesced
+                + ", applied: " + applied
+                + ", commits: " + commits
+                + ", overflows: " + overflows
+                + ", rescans: " + rescanned;
+    }
+
+    /** Applies and commits everything that is still waiting.
+     */
+    void drain() {
+        if (!pending.isEmpty()) {
+            flush();
+        }
+        if (uncommitted > 0) {
+            commit();
+        }
+    }
+
+    @Override
+    public void close() {
+        drain();
+    }
+}
@@ -0,0 +1,92 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.indexer;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/** Text streamed out of a parser.
+ * Only the beginning of the text (the head) is kept in memory: it is what
+ * gets stored in the index and what language detection looks at. The rest
+ * is read directly by the IndexWriter while the document is being indexed.
+ */
+class ExtractedText implements AutoCloseable {
+
+    private final String head;
+    private final Reader rest;
+    private final boolean complete;
+
+    private ExtractedText(String head, Reader rest, boolean complete) {
+        this.head = head;
+        this.rest = rest;
+        this.complete = complete;
+    }
+
+    /** Reads up to @p headLength characters of @p reader, leaving the rest unread.
+     */
+    static ExtractedText read(Reader reader, int headLength) throws IOException {
+        char[] buffer = new char[Math.min(headLength, 64 * 1024)];
+        StringBuilder head = new StringBuilder();
+        int read = 0;
+        while (head.length() < headLength
+                && (read = reader.read(buffer, 0, Math.min(buffer.length, headLength - head.length()))) != -1) {
+            head.append(buffer, 0, read);
+        }
+        return new ExtractedText(head.toString(), reader, read == -1);
+    }
+
+    String head() {
+        return head;
+    }
+
+    /// Whether the head holds the whole text.
+    boolean isComplete() {
+        return complete;
+    }
+
+    /** Reader of the whole text (head included) cut after @p limit characters.
+     * Can be consumed only once.
+     */
+    Reader reader(long limit) {
+        return new Reader() {
+            private int headPosition = 0;
+            private long remaining = limit;
+
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                length = (int) Math.min(length, remaining);
+                int read;
+                if (headPosition < head.length()) {
+                    read = Math.min(length, head.length() - headPosition);
+                    head.getChars(headPosition, headPosition + read, buffer, offset);
+                    headPosition += read;
+                }
+                else if (complete) {
+                    return -1;
+                }
+                else {
+                    read = rest.read(buffer, offset, length);
+                    if (read == -1) {
+                        return -1;
+                    }
+                }
+                remaining -= read;
+                return read;
+            }
+
+            @Override
+            public void close() {
+                // the underlying reader is closed with the ExtractedText
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        rest.close();
+    }
+}
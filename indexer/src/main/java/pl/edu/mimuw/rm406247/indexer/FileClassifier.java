@@ -0,0 +1,175 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.indexer;
+
+import org.apache.tika.Tika;
+import pl.edu.mimuw.rm406247.Metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Decides which files are indexed: TXT, PDF, RTF, OpenXML and
+ * Open Document text. The cheapest test that can answer is used:
+ * 1. the extension, for types recognised by their name,
+ * 2. the first bytes of the file, for files without a known extension,
+ * 3. full Tika detection, when neither of the above is conclusive.
+ * Every thread reuses its own Tika instance, which is also used for parsing.
+ */
+class FileClassifier {
+
+    private static final Map<String, String> ACCEPTED_EXTENSIONS = new HashMap<>();
+    private static final Set<String> REJECTED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            // binaries and build output
+            "class", "jar", "war", "o", "obj", "a", "so", "dll", "exe", "bin", "pyc", "lib", "dylib",
+            // archives
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "tar", "iso", "dmg",
+            // media
+            "png", "jpg", "jpeg", "gif", "bmp", "tif", "tiff", "ico", "svg", "webp", "psd",
+            "mp3", "wav", "flac", "ogg", "m4a", "mp4", "mkv", "avi", "mov", "wmv", "webm",
+            // text and documents of types which are not indexed
+            "html", "htm", "xml", "json", "csv", "md", "java", "c", "h", "cpp", "py", "js", "css",
+            "doc", "xls", "ppt", "odp", "ods", "odg", "epub"));
+
+    static {
+        ACCEPTED_EXTENSIONS.put("txt", "text/plain");
+        ACCEPTED_EXTENSIONS.put("pdf", "application/pdf");
+        ACCEPTED_EXTENSIONS.put("rtf", "application/rtf");
+        ACCEPTED_EXTENSIONS.put("docx", "application/vnd.openxmlformats-officedocument.wordprocessingml.document");
+        ACCEPTED_EXTENSIONS.put("xlsx", "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+        ACCEPTED_EXTENSIONS.put("pptx", "application/vnd.openxmlformats-officedocument.presentationml.presentation");
+        ACCEPTED_EXTENSIONS.put("odt", "application/vnd.oasis.opendocument.text");
+    }
+
+    private static final FileClassifier instance = new FileClassifier();
+
+    private final ThreadLocal<Tika> tika = ThreadLocal.withInitial(Tika::new);
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+    private final LongAdder byExtension = new LongAdder();
+    private final LongAdder byMagic = new LongAdder();
+    private final LongAdder byTika = new LongAdder();
+    private final Metrics.Timer timer = Metrics.timer("indexer.detectType");
+
+    static FileClassifier get() {
+        return instance;
+    }
+
+    /// Tika instance of the current thread.
+    Tika tika() {
+        return tika.get();
+    }
+
+    /** Checks whether @p path is of one of the indexed types.
+     */
+    boolean isIndexable(Path path) throws IOException {
+        long start = System.nanoTime();
+        try {
+            String type = byExtension(path);
+            if (type != null) {
+                byExtension.increment();
+            }
+            else {
+                type = byMagic(path);
+                if (type != null) {
+                    byMagic.increment();
+                }
+                else {
+                    type = tika().detect(path);
+                    byTika.increment();
+                }
+            }
+            counts.computeIfAbsent(type, key -> new LongAdder()).increment();
+            return isIndexedType(type);
+        }
+        finally {
+            timer.recordSince(start);
+        }
+    }
+
+    static boolean isIndexedType(String type) {
+        return type.contains("opendocument.text")
+                || type.contains("rtf")
+                || type.contains("openxmlformats")
+                || type.contains("pdf")
+                || type.contains("text/plain");
+    }
+
+    /// Type implied by the extension, null if the extension is not conclusive.
+    private static String byExtension(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot <= 0) {
+            return null;
+        }
+        String extension = name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        if (REJECTED_EXTENSIONS.contains(extension)) {
+            return "skipped/" + extension;
+        }
+        return ACCEPTED_EXTENSIONS.get(extension);
+    }
+
+    /// Type implied by the first bytes of the file, null if they are not conclusive.
+    private static String byMagic(Path path) throws IOException {
+        byte[] head = new byte[512];
+        int length = 0;
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while (length < head.length && (read = in.read(head, length, head.length - length)) != -1) {
+                length += read;
+            }
+        }
+        if (startsWith(head, length, "%PDF-")) {
+            return "application/pdf";
+        }
+        if (startsWith(head, length, "{\\rtf")) {
+            return "application/rtf";
+        }
+        if (startsWith(head, length, "\u007fELF")
+                || startsWith(head, length, "\u0089PNG")
+                || startsWith(head, length, "GIF8")
+                || startsWith(head, length, "\u00ff\u00d8\u00ff")
+                || startsWith(head, length, "\u00ca\u00fe\u00ba\u00be")) {
+            return "skipped/binary";
+        }
+        if (startsWith(head, length, "PK\u0003\u0004")) {
+            return null; // zip, OpenXML or Open Document, only Tika can tell
+        }
+        for (int i = 0; i < length; i++) {
+            if (head[i] == 0) {
+                return "skipped/binary";
+            }
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] head, int length, String magic) {
+        if (length < magic.length()) {
+            return false;
+        }
+        for (int i = 0; i < magic.length(); i++) {
+            if ((head[i] & 0xff) != magic.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String stats() {
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("Classified %d files in %.1f ms (extension: %d, magic bytes: %d, Tika: %d)",
+                byExtension.sum() + byMagic.sum() + byTika.sum(), timer.getTotalMillis(),
+                byExtension.sum(), byMagic.sum(), byTika.sum()));
+        new TreeMap<>(counts).forEach((type, count) ->
+                result.append(System.lineSeparator()).append("    ").append(type).append(": ").append(count.sum()));
+        return result.toString();
+    }
+
+    long classified() {
+        return byExtension.sum() + byMagic.sum() + byTika.sum();
+    }
+}
@@ -0,0 +1,131 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.indexer;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.IndexableField;
+import pl.edu.mimuw.rm406247.Metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/** State of a file at the moment it was indexed.
+ * Size and modification time are always recorded, the content hash only
+ * when hashing is enabled (-Dindexer.hash=true). A file whose size or mtime
+ * changed but whose hash is still the same is considered unchanged.
+ * The mtime is also kept in doc values, so that the indexer can record the new
+ * mtime of such a touched file without reindexing it, and not hash it again.
+ */
+class Fingerprint {
+
+    private static final Metrics.Counter HASHES = Metrics.counter("indexer.hashes");
+
+    /// How a file compares with its fingerprint.
+    enum Match {
+        SAME,
+        /// Same content, by hash, but another mtime.
+        TOUCHED,
+        CHANGED
+    }
+
+    static final String SIZE_FIELD = "size";
+    static final String MTIME_FIELD = "mtime";
+    static final String HASH_FIELD = "hash";
+
+    private final long size;
+    private final long mtime;
+    private final String hash;
+
+    Fingerprint(long size, long mtime, String hash) {
+        this.size = size;
+        this.mtime = mtime;
+        this.hash = hash;
+    }
+
+    static Fingerprint of(Path path, boolean withHash) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        return new Fingerprint(attrs.size(),
+                attrs.lastModifiedTime().toMillis(),
+                withHash ? hash(path) : null);
+    }
+
+    /** Reads the fingerprint stored in @p document.
+     * Documents indexed without one get a fingerprint that never matches.
+     * The stored mtime is the one of indexing, see withMtime() for the current one.
+     */
+    static Fingerprint of(Document document) {
+        IndexableField size = document.getField(SIZE_FIELD);
+        IndexableField mtime = document.getField(MTIME_FIELD);
+        if (size == null || mtime == null) {
+            return new Fingerprint(-1, -1, null);
+        }
+        return new Fingerprint(size.numericValue().longValue(),
+                mtime.numericValue().longValue(),
+                document.get(HASH_FIELD));
+    }
+
+    /// The same fingerprint with @p mtime, as updated in the doc values of its document.
+    Fingerprint withMtime(long mtime) {
+        return size < 0 ? this : new Fingerprint(size, mtime, hash);
+    }
+
+    void addTo(Document document) {
+        document.add(new StoredField(SIZE_FIELD, size));
+        document.add(new StoredField(MTIME_FIELD, mtime));
+        document.add(new NumericDocValuesField(MTIME_FIELD, mtime));
+        if (hash != null) {
+            document.add(new StoredField(HASH_FIELD, hash));
+        }
+    }
+
+    /** Checks whether @p path still looks like it did when this fingerprint was taken.
+     * The hash is computed only when cheaper metadata differs.
+     */
+    boolean matches(Path path, boolean withHash) throws IOException {
+        return compare(path, withHash) != Match.CHANGED;
+    }
+
+    /** Compares @p path with this fingerprint, computing the hash only when cheaper metadata differs.
+     */
+    Match compare(Path path, boolean withHash) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        if (attrs.size() == size && attrs.lastModifiedTime().toMillis() == mtime) {
+            return Match.SAME;
+        }
+        if (withHash && hash != null && attrs.size() == size && hash.equals(hash(path))) {
+            return Match.TOUCHED;
+        }
+        return Match.CHANGED;
+    }
+
+    static String hash(Path path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        HASHES.increment();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
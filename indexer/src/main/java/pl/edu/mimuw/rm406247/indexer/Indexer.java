@@ -3,36 +3,106 @@
  */
 package pl.edu.mimuw.rm406247.indexer;
 
-import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.*;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.PrefixQuery;
-import org.apache.lucene.search.Query;
+import org.apache.lucene.search.*;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.tika.Tika;
 import org.apache.tika.exception.TikaException;
-import org.apache.tika.langdetect.OptimaizeLangDetector;
-import org.apache.tika.language.detect.LanguageDetector;
 import org.apache.tika.language.detect.LanguageResult;
+import pl.edu.mimuw.rm406247.AnalyzerRegistry;
 import pl.edu.mimuw.rm406247.IndexerUtils;
+import pl.edu.mimuw.rm406247.Metrics;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.util.Scanner;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 public class Indexer implements AutoCloseable {
 
+    /// Time of every walk of a tree given to --add, --reindex or the watcher, workers included.
+    private static final Metrics.Timer WALK = Metrics.timer("indexer.walk");
+    private static final Metrics.Counter FILES = Metrics.counter("indexer.files");
+    /// Parsing up to the stored head, the rest of the text is parsed inside updateDocument.
+    private static final Metrics.Timer PARSE = Metrics.timer("indexer.parse");
+    private static final Metrics.Timer UPDATE = Metrics.timer("indexer.updateDocument");
+    private static final Metrics.Timer DELETE = Metrics.timer("indexer.delete");
+    private static final Metrics.Timer COMMIT = Metrics.timer("indexer.commit");
+    private static final Metrics.Counter CHECKPOINTS = Metrics.counter("indexer.checkpoints");
+
+    private static final Set<String> FINGERPRINT_FIELDS = new HashSet<>(Arrays.asList(
+            "path", Fingerprint.SIZE_FIELD, Fingerprint.MTIME_FIELD, Fingerprint.HASH_FIELD));
+
+    /// Indexed text with offsets in postings, so snippets can be cut without re-analysis.
+    static final FieldType BODY_TYPE = new FieldType(TextField.TYPE_NOT_STORED);
+    static {
+        BODY_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        BODY_TYPE.freeze();
+    }
+
+    /** Words of the stored head as they are written, only lowercased, which the searcher
+     * completes from; the body field holds stems, which are no words to suggest.
+     */
+    static final FieldType WORDS_TYPE = new FieldType(TextField.TYPE_NOT_STORED);
+    static {
+        WORDS_TYPE.setIndexOptions(IndexOptions.DOCS);
+        WORDS_TYPE.setOmitNorms(true);
+        WORDS_TYPE.freeze();
+    }
+
     private IndexWriter indexWriter;
+    /// Shards of roots which have an index of their own, by root.
+    private final Map<Path, Shard> shards = new ConcurrentHashMap<>();
+    private final boolean shardRoots = IndexerUtils.shardRoots();
+    /// Body fields created before offsets were indexed, they keep their old options.
+    private final Set<String> legacyBodyFields = new HashSet<>();
+    /// Whether the index contains documents indexed without ancestor terms.
+    private boolean legacyPaths = false;
     private FSDirectory indexDir;
     private Path indexPath;
+    private IndexingPipeline pipeline;
+    private final ParallelCrawler crawler = new ParallelCrawler(IndexerUtils.crawlThreads());
+    /// Indexed roots, saved with every commit.
+    private RootRegistry roots;
+    private final boolean hashFiles = IndexerUtils.hashFingerprints();
+    private final int storedChars = IndexerUtils.storedChars();
+    private final long indexedChars = IndexerUtils.indexedChars();
+    private final boolean quiet = IndexerUtils.quiet();
+    /// Tuning of the writers, also deciding whether steps of a command are committed on their own.
+    private final IndexingProfile profile;
+    /// Files and milliseconds after which a reindex saves its progress.
+    private final int checkpointFiles = IndexerUtils.checkpointFiles();
+    private final long checkpointInterval = IndexerUtils.checkpointInterval();
+
+    /** Index of the documents under one root, kept in its own directory below
+     * IndexerUtils.shardsPath(). The root is stored in the commit data of the shard.
+     */
+    private static class Shard {
+        static final String ROOT_KEY = "shard.root";
+
+        final Path root;
+        final Path path;
+        final FSDirectory directory;
+        final IndexWriter writer;
+
+        Shard(Path root, Path path, FSDirectory directory, IndexWriter writer) {
+            this.root = root;
+            this.path = path;
+            this.directory = directory;
+            this.writer = writer;
+        }
+    }
 
     /** Creates new indexer.
      *
@@ -40,17 +110,20 @@ public class Indexer implements AutoCloseable {
      * @throws IOException
      */
     public Indexer(Path indexPath) throws IOException{
+        this(indexPath, IndexerUtils.indexingThreads(), IndexingProfile.LIVE);
+    }
+
+    /** Creates new indexer.
+     *
+     * @param indexPath - path to the index directory ending with \ or /
+     * @param threads - number of threads extracting documents in parallel
+     * @param profile - tuning of the index writers
+     * @throws IOException
+     */
+    public Indexer(Path indexPath, int threads, IndexingProfile profile) throws IOException{
         this.indexPath = indexPath;
-        Analyzer analyzer;
-        try {
-            analyzer = IndexerUtils.defaultAnalyzer();
-        }
-        catch (IOException e) {
-            System.err.println("Fatal error creating analyzer.");
-            System.err.println(e.getMessage());
-            throw e;
-        }
-        IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
+        this.profile = profile;
+        IndexWriterConfig iwc = writerConfig();
 
         try {
             indexDir = FSDirectory.open(indexPath);
@@ -75,21 +148,299 @@ public class Indexer implements AutoCloseable {
             System.err.println(e.getMessage());
             throw e;
         }
+        Map<String, String> commitData = new HashMap<>();
+        Iterable<Map.Entry<String, String>> liveCommitData = indexWriter.getLiveCommitData();
+        if (liveCommitData != null) {
+            for (Map.Entry<String, String> entry : liveCommitData) {
+                commitData.put(entry.getKey(), entry.getValue());
+            }
+        }
+        roots = RootRegistry.of(commitData);
+        if (!RootRegistry.isStoredIn(commitData)) {
+            migrateIndexedDirs();
+        }
+        try (IndexReader indexReader = DirectoryReader.open(indexWriter)) {
+            FieldInfos fieldInfos = FieldInfos.getMergedFieldInfos(indexReader);
+            if (indexReader.getDocCount("ancestor") < indexReader.maxDoc()) {
+                legacyPaths = true;
+                System.out.println("Index was created without directory terms, removing directories is slower."
+                        + " Run --purge and --add again to index them.");
+            }
+            for (FieldInfo fieldInfo : fieldInfos) {
+                if (fieldInfo.name.startsWith("body-")
+                        && fieldInfo.getIndexOptions() != IndexOptions.NONE
+                        && fieldInfo.getIndexOptions() != BODY_TYPE.indexOptions()) {
+                    legacyBodyFields.add(fieldInfo.name);
+                }
+            }
+        }
+        if (!legacyBodyFields.isEmpty()) {
+            System.out.println("Index was created without offsets, highlighting will analyze stored text."
+                    + " Run --purge and --add again to index offsets.");
+        }
+        openShards();
+        pipeline = new IndexingPipeline(threads, 4 * threads);
+    }
+
+    /** Saves the progress of the reindex of @p root, once checkpointFiles files were submitted
+     * or checkpointInterval milliseconds passed since the last checkpoint. Files up to
+     * @p resumeAfter in the walk were done by an interrupted run and are not counted.
+     */
+    private class Checkpointer {
+        private final Path root;
+        private final Path resumeAfter;
+        private int files = 0;
+        private long last = System.currentTimeMillis();
+
+        Checkpointer(Path root, Path resumeAfter) {
+            this.root = root;
+            this.resumeAfter = resumeAfter;
+        }
+
+        /// Whether @p file was done by the interrupted run.
+        boolean done(Path file) {
+            return resumeAfter != null && SortedFileTree.compare(file.toAbsolutePath(), resumeAfter) <= 0;
+        }
+
+        /** Called by the crawler after @p file was submitted. A checkpoint waits for
+         * every submitted file, so all files up to @p file are in the commit naming it.
+         */
+        void submitted(Path file) {
+            if (done(file)) {
+                return;
+            }
+            files++;
+            if (files < checkpointFiles && System.currentTimeMillis() - last < checkpointInterval) {
+                return;
+            }
+            pipeline.await();
+            roots.setCheckpoint(new RootRegistry.Checkpoint(root, file.toAbsolutePath()));
+            commit();
+            CHECKPOINTS.increment();
+            files = 0;
+            last = System.currentTimeMillis();
+        }
+    }
+
+    /// New writer configuration tuned by the profile, every writer needs its own.
+    private IndexWriterConfig writerConfig() {
+        return profile.configure(new IndexWriterConfig(IndexerUtils.defaultAnalyzer()));
+    }
+
+    /// Opens the writers of all shards found below the index directory.
+    private void openShards() {
+        Path shardsPath = IndexerUtils.shardsPath(indexPath);
+        if (!Files.isDirectory(shardsPath)) {
+            return;
+        }
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(shardsPath, Files::isDirectory)) {
+            for (Path path : directories) {
+                FSDirectory directory = FSDirectory.open(path);
+                try {
+                    if (!DirectoryReader.indexExists(directory)) {
+                        directory.close();
+                        continue; // a shard whose creation did not finish
+                    }
+                    IndexWriter writer = new IndexWriter(directory,
+                            writerConfig().setOpenMode(IndexWriterConfig.OpenMode.APPEND));
+                    String root = null;
+                    for (Map.Entry<String, String> entry : writer.getLiveCommitData()) {
+                        if (entry.getKey().equals(Shard.ROOT_KEY)) {
+                            root = entry.getValue();
+                        }
+                    }
+                    if (root == null) {
+                        writer.close();
+                        directory.close();
+                        System.err.println("Shard " + path + " does not name its root, it is not used.");
+                        continue;
+                    }
+                    shards.put(Paths.get(root), new Shard(Paths.get(root), path, directory, writer));
+                }
+                catch (IOException e) {
+                    directory.close();
+                    throw e;
+                }
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Could not open the shards in " + shardsPath + ".");
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /** Creates the shard of @p root, moving the documents under it out of the indexes holding them.
+     * The shard is committed at once, so that it is found even if adding the root does not finish.
+     */
+    private void createShard(Path root) {
+        removeDoc(root);
+        Path path = IndexerUtils.shardsPath(indexPath).resolve(shardName(root));
+        FSDirectory directory = null;
+        try {
+            Files.createDirectories(path);
+            directory = FSDirectory.open(path);
+            IndexWriter writer = new IndexWriter(directory,
+                    writerConfig().setOpenMode(IndexWriterConfig.OpenMode.CREATE));
+            writer.setLiveCommitData(Collections.singletonMap(Shard.ROOT_KEY, root.toString()).entrySet());
+            writer.commit();
+            shards.put(root, new Shard(root, path, directory, writer));
+        }
+        catch (IOException e) {
+            System.err.println("Could not create a shard for " + root + ", its documents go to the main index.");
+            System.err.println(e.getMessage());
+            if (directory != null) {
+                try {
+                    directory.close();
+                }
+                catch (IOException closeError) {
+                    // nothing more to do
+                }
+            }
+        }
+    }
+
+    /// Name of the directory of the shard of @p root, the same for every run.
+    private static String shardName(Path root) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(root.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                name.append(String.format("%02x", digest[i]));
+            }
+            return name.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e); // SHA-1 is always available
+        }
+    }
+
+    /// Closes the shard of @p root and deletes its directory, dropping all its documents at once.
+    private void dropShard(Path root) {
+        Shard shard = shards.remove(root);
+        if (shard == null) {
+            return;
+        }
+        try {
+            shard.writer.rollback();
+            shard.directory.close();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(shard.path)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(shard.path);
+        }
+        catch (IOException e) {
+            System.err.println("Could not delete the shard of " + root + " in " + shard.path + ".");
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /// Writer of the index holding @p path: the shard of the deepest root containing it, the main index otherwise.
+    private IndexWriter writerFor(Path path) {
+        Path absolute = path.toAbsolutePath();
+        Shard deepest = null;
+        for (Shard shard : shards.values()) {
+            if (absolute.startsWith(shard.root)
+                    && (deepest == null || shard.root.getNameCount() > deepest.root.getNameCount())) {
+                deepest = shard;
+            }
+        }
+        return deepest == null ? indexWriter : deepest.writer;
+    }
+
+    /// Writers of every index which may hold documents under @p path.
+    private List<IndexWriter> writersUnder(Path path) {
+        Path absolute = path.toAbsolutePath();
+        List<IndexWriter> writers = new ArrayList<>();
+        writers.add(indexWriter);
+        for (Shard shard : shards.values()) {
+            if (absolute.startsWith(shard.root) || shard.root.startsWith(absolute)) {
+                writers.add(shard.writer);
+            }
+        }
+        return writers;
+    }
+
+    /** Moves the roots from indexed_dirs.txt, where they were kept before,
+     * into the registry. The file is removed once the registry is committed.
+     */
+    private void migrateIndexedDirs() {
+        Path indexedDirs = indexPath.resolve("indexed_dirs.txt");
+        int migrated = 0;
+        if (Files.exists(indexedDirs)) {
+            try {
+                for (String line : Files.readAllLines(indexedDirs)) {
+                    if (!line.trim().isEmpty()) {
+                        roots.put(Paths.get(line.trim()).toAbsolutePath(), RootRegistry.State.UNKNOWN);
+                        migrated++;
+                    }
+                }
+            }
+            catch (IOException e) {
+                System.err.println("Could not read indexed_dirs.txt, indexed directories are not moved into the index.");
+                System.err.println(e.getMessage());
+                return;
+            }
+        }
+        roots.touch();
+        commit();
+        try {
+            if (Files.deleteIfExists(indexedDirs)) {
+                System.out.println("Moved " + migrated + " indexed directories from indexed_dirs.txt into the index.");
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Could not remove indexed_dirs.txt, it is no longer used.");
+        }
     }
 
     /** Performs action on every file in the directory pointed by @p path.
      * If path points to a file only this file is indexed.
+     * Directories are listed in parallel by the crawler and the files found
+     * are processed by the pipeline workers, the method returns after all
+     * of them are done.
      *
      * @param path - Path to file / directory
      * @param fileAction - Action to be performed on the files.
      * @throws IOException
      */
     private void indexDocs(Path path, Consumer<Path> fileAction) throws IOException {
+        indexDocs(path, fileAction, null);
+    }
+
+    /** Performs action on every file under @p path as indexDocs(path, fileAction) does.
+     * With a @p checkpointer files are visited by a single thread in the order of
+     * SortedFileTree instead of the crawler, and the progress is saved while they are.
+     */
+    private void indexDocs(Path path, Consumer<Path> fileAction, Checkpointer checkpointer) throws IOException {
         if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
-            FileVisitor<Path> fileVisitor = new IndexingVisitor(fileAction);
-            Files.walkFileTree(path, fileVisitor);
+            FileVisitor<Path> fileVisitor = new IndexingVisitor(file -> {
+                FILES.increment();
+                pipeline.submit(file, fileAction);
+                if (checkpointer != null) {
+                    checkpointer.submitted(file);
+                }
+            });
+            long start = System.nanoTime();
+            try {
+                if (checkpointer != null) {
+                    SortedFileTree.walk(path, fileVisitor);
+                }
+                else {
+                    ParallelCrawler.Stats stats = crawler.crawl(path, fileVisitor);
+                    if (!quiet) {
+                        System.out.println("Crawled " + stats + ".");
+                    }
+                }
+            }
+            finally {
+                pipeline.await();
+                WALK.recordSince(start);
+            }
         }
         else if (Files.isRegularFile(path)){
+            FILES.increment();
             fileAction.accept(path);
         }
         else {
@@ -111,52 +462,79 @@ public class Indexer implements AutoCloseable {
     private void addDocFunction(Path path) {
         if (Files.isRegularFile(path)) {
             try {
-                Tika tika = new Tika();
-                Document document = new Document();
-                String extension = tika.detect(path);
-
-                if (!(extension.contains("opendocument.text")
-                        || extension.contains("rtf")
-                        || extension.contains("openxmlformats")
-                        || extension.contains("pdf")
-                        || extension.contains("text/plain"))) {
+                FileClassifier classifier = FileClassifier.get();
+                if (!classifier.isIndexable(path)) {
                     return; // invalid file type
                 }
-                String content = tika.parseToString(path);
-                LanguageResult language_result = detectLanguage(content);
-                String lang_short = "en";
-                if (language_result.isReasonablyCertain() && language_result.getLanguage().equals("pl")) {
-                    lang_short = "pl";
-                }
+                Tika tika = classifier.tika();
+                IndexWriter writer = writerFor(path);
+                Document document = new Document();
+                Fingerprint.of(path, hashFiles).addTo(document);
+                long parseStart = System.nanoTime();
+                try (ExtractedText text = ExtractedText.read(tika.parse(path), storedChars)) {
+                    PARSE.recordSince(parseStart);
+                    LanguageService.Detection detection = LanguageService.get().detect(text.head());
+                    LanguageResult language_result = detection.result();
+                    String lang_short = "en";
+                    if (language_result.isReasonablyCertain()
+                            && AnalyzerRegistry.isRegistered(language_result.getLanguage())) {
+                        lang_short = language_result.getLanguage();
+                    }
 
-                StringField fieldPath =
-                        new StringField("path", path.toAbsolutePath().toString(), Field.Store.YES);
-                TextField fieldContent =
-                        new TextField("body-" + lang_short, content, Field.Store.YES);
-                String titleText = path.toFile().getName().replace(".", " ");
-                TextField fieldTitle =
-                        new TextField("title-" + lang_short, titleText, Field.Store.YES);
-                document.add(fieldPath);
-                document.add(fieldContent);
-                document.add(fieldTitle);
-
-                if (indexWriter.getConfig().getOpenMode() == IndexWriterConfig.OpenMode.CREATE) {
-                    System.out.println("Adding " + path.getFileName());
-                    indexWriter.updateDocument(new Term("path", path.toAbsolutePath().toString()), document);
-                    //indexWriter.addDocument(document);
-                }
-                else {
-                    System.out.println("Updating " + path.getFileName());
-                    indexWriter.updateDocument(new Term("path", path.toAbsolutePath().toString()), document);
+                    StringField fieldPath =
+                            new StringField("path", path.toAbsolutePath().toString(), Field.Store.YES);
+                    // the text is indexed straight from the parser, only its head is stored
+                    String bodyField = "body-" + lang_short;
+                    Field fieldContent = new Field(bodyField, text.reader(indexedChars),
+                            writer == indexWriter && legacyBodyFields.contains(bodyField)
+                                    ? TextField.TYPE_NOT_STORED : BODY_TYPE);
+                    StoredField fieldStoredContent = new StoredField(bodyField, text.head());
+                    String titleText = path.toFile().getName().replace(".", " ");
+                    TextField fieldTitle =
+                            new TextField("title-" + lang_short, titleText, Field.Store.YES);
+                    document.add(fieldPath);
+                    addAncestors(document, path);
+                    document.add(fieldContent);
+                    document.add(fieldStoredContent);
+                    document.add(new Field("words-" + lang_short, text.head(), WORDS_TYPE));
+                    document.add(fieldTitle);
+                    document.add(new StoredField("lang-time-us", detection.nanos() / 1000));
+
+                    long updateStart = System.nanoTime();
+                    if (writer.getConfig().getOpenMode() == IndexWriterConfig.OpenMode.CREATE) {
+                        if (!quiet) {
+                            System.out.println("Adding " + path.getFileName());
+                        }
+                        writer.updateDocument(new Term("path", path.toAbsolutePath().toString()), document);
+                        //indexWriter.addDocument(document);
+                    }
+                    else {
+                        if (!quiet) {
+                            System.out.println("Updating " + path.getFileName());
+                        }
+                        writer.updateDocument(new Term("path", path.toAbsolutePath().toString()), document);
+                    }
+                    UPDATE.recordSince(updateStart);
                 }
             }
-            catch (TikaException te) {
-                System.err.println("Tika exception reading file " + path.toString());
-                System.err.println(te.getMessage());
-            }
             catch (IOException e){
-                System.err.println("IOException reading file " + path.toString());
-                System.err.println(e.getMessage());
+                synchronized (System.err) {
+                    if (e.getCause() instanceof TikaException) {
+                        System.err.println("Tika exception reading file " + path.toString());
+                        System.err.println(e.getCause().getMessage());
+                    }
+                    else {
+                        System.err.println("IOException reading file " + path.toString());
+                        System.err.println(e.getMessage());
+                    }
+                }
+            }
+            catch (IllegalArgumentException e) {
+                // raised by the IndexWriter for documents it refuses, e.g. with immense terms
+                synchronized (System.err) {
+                    System.err.println("Could not index file " + path.toString());
+                    System.err.println(e.getMessage());
+                }
             }
         }
         else {
@@ -171,19 +549,12 @@ public class Indexer implements AutoCloseable {
     private void removeDocFunction(Path path) {
         if (Files.isRegularFile(path)) {
             try {
-                Tika tika = new Tika();
-                String extension = tika.detect(path);
-
-                if (!(extension.contains("opendocument.text")
-                        || extension.contains("rtf")
-                        || extension.contains("openxmlformats")
-                        || extension.contains("pdf")
-                        || extension.contains("text/plain"))) {
+                if (!FileClassifier.get().isIndexable(path)) {
                     return; // invalid file type
                 }
                 System.out.println("Removing " + path.getFileName());
-                indexWriter.deleteDocuments(new Term("path", path.toAbsolutePath().toString()));
-                indexWriter.commit();
+                writerFor(path).deleteDocuments(new Term("path", path.toAbsolutePath().toString()));
+                writerFor(path).commit();
             }
             catch (IOException e) {
                 System.err.println("IOException reading file " + path.toString());
@@ -195,31 +566,196 @@ public class Indexer implements AutoCloseable {
         }
     }
 
-    /** Removes all documents which have @p path as their prefix.
+    /** Removes @p path and all documents in the directory it points to.
      * @param path - Folder / file to delete.
      */
     private void removeDoc(Path path) {
-        Query query;
-        try (IndexReader indexReader = DirectoryReader.open(indexDir)) {
+        long start = System.nanoTime();
+        try {
+            for (IndexWriter writer : writersUnder(path)) {
+                writer.deleteDocuments(subtreeQuery(path));
+            }
+            DELETE.recordSince(start);
+        }
+        catch (IOException e) {
+            System.err.println("Could not delete documents.");
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /** Query matching @p path and everything below it.
+     * Every directory above a document is indexed as an exact term of the
+     * ancestor field, so this is a lookup of two terms. Indexes created
+     * before that field existed fall back to a prefix query.
+     * @param path - Folder / file.
+     */
+    private Query subtreeQuery(Path path) {
+        String root = path.toAbsolutePath().toString();
+        Query below;
+        if (legacyPaths) {
+            String prefix = root.endsWith(File.separator) ? root : root + File.separator;
+            below = new PrefixQuery(new Term("path", prefix));
+        }
+        else {
+            below = new TermQuery(new Term("ancestor", root));
+        }
+        return new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("path", root)), BooleanClause.Occur.SHOULD)
+                .add(below, BooleanClause.Occur.SHOULD)
+                .build();
+    }
+
+    /// Adds every directory containing @p path as an ancestor term.
+    private static void addAncestors(Document document, Path path) {
+        for (Path parent = path.toAbsolutePath().getParent(); parent != null; parent = parent.getParent()) {
+            document.add(new StringField("ancestor", parent.toString(), Field.Store.NO));
+        }
+    }
+
+    /** Reads fingerprints of all documents under @p path.
+     * @return Map from the indexed path to its fingerprint.
+     */
+    private Map<String, Fingerprint> indexedFingerprints(Path path) throws IOException {
+        Map<String, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+        for (IndexWriter writer : writersUnder(path)) {
+            collectFingerprints(writer, path, fingerprints);
+        }
+        return fingerprints;
+    }
+
+    private void collectFingerprints(IndexWriter writer, Path path, Map<String, Fingerprint> fingerprints)
+            throws IOException {
+        try (IndexReader indexReader = DirectoryReader.open(writer)) {
             IndexSearcher indexSearcher = new IndexSearcher(indexReader);
-            query = new PrefixQuery(new Term("path", path.toAbsolutePath().toString()));
+            indexSearcher.search(subtreeQuery(path), new SimpleCollector() {
+                private LeafReader leafReader;
+
+                private NumericDocValues mtimes;
+
+                @Override
+                protected void doSetNextReader(LeafReaderContext context) throws IOException {
+                    leafReader = context.reader();
+                    mtimes = leafReader.getNumericDocValues(Fingerprint.MTIME_FIELD);
+                }
+
+                @Override
+                public void collect(int doc) throws IOException {
+                    Document document = leafReader.document(doc, FINGERPRINT_FIELDS);
+                    Fingerprint fingerprint = Fingerprint.of(document);
+                    // the stored mtime is not updated when a touched file is found unchanged
+                    if (mtimes != null && mtimes.advanceExact(doc)) {
+                        fingerprint = fingerprint.withMtime(mtimes.longValue());
+                    }
+                    fingerprints.put(document.get("path"), fingerprint);
+                }
+
+                @Override
+                public ScoreMode scoreMode() {
+                    return ScoreMode.COMPLETE_NO_SCORES;
+                }
+            });
+        }
+    }
+
+    /** Brings the index in line with the file tree under @p docsPath.
+     * Only new files and files whose fingerprint changed are parsed,
+     * documents of files which no longer exist are removed.
+     * @param docsPath - Path to the file / directory.
+     */
+    public void reconcile(Path docsPath) {
+        reconcileWithoutCommit(docsPath);
+        commit();
+    }
+
+    /// Reconciles documents under @p docsPath, leaving the changes uncommitted.
+    void reconcileWithoutCommit(Path docsPath) {
+        reconcileWithoutCommit(docsPath, null);
+    }
+
+    /** Reconciles documents under @p docsPath, saving the progress with @p checkpointer
+     * if it is not null. Files done by an interrupted run are only marked as present.
+     */
+    private void reconcileWithoutCommit(Path docsPath, Checkpointer checkpointer) {
+        Map<String, Fingerprint> indexed;
+        try {
+            indexed = indexedFingerprints(docsPath);
         }
         catch (IOException e) {
-            System.err.println("Failed to open searcher in removeDoc.");
+            System.err.println("Could not read indexed files, reindexing " + docsPath + " from scratch.");
             System.err.println(e.getMessage());
+            removeWithoutCommit(docsPath);
+            addWithoutCommit(docsPath);
             return;
         }
         try {
-            indexWriter.deleteDocuments(query);
+            indexDocs(docsPath, path -> {
+                Fingerprint fingerprint = indexed.remove(path.toAbsolutePath().toString());
+                if (checkpointer != null && checkpointer.done(path)) {
+                    return;
+                }
+                try {
+                    Fingerprint.Match match = fingerprint == null
+                            ? Fingerprint.Match.CHANGED : fingerprint.compare(path, hashFiles);
+                    if (match == Fingerprint.Match.SAME) {
+                        return;
+                    }
+                    if (match == Fingerprint.Match.TOUCHED && updateMtime(path)) {
+                        return;
+                    }
+                }
+                catch (IOException e) {
+                    // reading attributes failed, let addDocFunction report it
+                }
+                addDocFunction(path);
+            }, checkpointer);
         }
         catch (IOException e) {
-            System.err.println("Could not delete documents.");
+            System.err.println("IOException in walkFileTree:");
             System.err.println(e.getMessage());
+            if (!Files.notExists(docsPath)) {
+                return; // the tree was not fully visited, keep the remaining documents
+            }
+        }
+        for (String path : indexed.keySet()) {
+            if (!quiet) {
+                System.out.println("Removing " + Paths.get(path).getFileName());
+            }
+            try {
+                writerFor(Paths.get(path)).deleteDocuments(new Term("path", path));
+            }
+            catch (IOException e) {
+                System.err.println("Could not delete documents.");
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    /** Records the current mtime of @p path, whose content is unchanged, in the doc values
+     * of its document, so that the next reconcile finds it unchanged without hashing it.
+     *
+     * @return false if the document has no mtime doc values yet (it was indexed before
+     * they existed) and has to be indexed again.
+     */
+    private boolean updateMtime(Path path) throws IOException {
+        long mtime = Files.getLastModifiedTime(path).toMillis();
+        try {
+            writerFor(path).updateNumericDocValue(
+                    new Term("path", path.toAbsolutePath().toString()), Fingerprint.MTIME_FIELD, mtime);
+            return true;
+        }
+        catch (IllegalArgumentException e) {
+            return false; // no document of the index has the doc values field yet
         }
     }
 
     /// Adds documents.
     public void add(Path docsPath) {
+        addWithoutCommit(docsPath);
+        commit();
+    }
+
+    /// Adds documents, leaving the changes uncommitted.
+    void addWithoutCommit(Path docsPath) {
         try {
             indexDocs(docsPath, this::addDocFunction);
         }
@@ -227,127 +763,225 @@ public class Indexer implements AutoCloseable {
             System.err.println("IOException in walkFileTree:");
             System.err.println(e.getMessage());
         }
+    }
+
+    /** Saves all pending changes to the index, together with the registry of roots.
+     * Shards are committed first, so the registry never names a root before its documents are saved.
+     */
+    public void commit() {
+        for (Shard shard : shards.values()) {
+            if (shard.writer.hasUncommittedChanges()) {
+                long start = System.nanoTime();
+                try {
+                    shard.writer.commit();
+                    COMMIT.recordSince(start);
+                }
+                catch (IOException e) {
+                    System.err.println("Could not save changes to the shard of " + shard.root + ".");
+                    System.err.println(e.getMessage());
+                }
+            }
+        }
+        Map<String, String> commitData = roots.takeCommitData();
+        if (commitData != null) {
+            indexWriter.setLiveCommitData(commitData.entrySet());
+        }
+        long start = System.nanoTime();
         try {
             indexWriter.commit();
+            COMMIT.recordSince(start);
         }
         catch (IOException e) {
+            if (commitData != null) {
+                roots.touch();
+            }
             System.err.println("Could not save changes to index.");
             System.err.println(e.getMessage());
         }
     }
 
-    /** Adds directory / file to the index and saves the path to watched paths.
+    /// Roots added with addToIndexedPaths(), as of the last change.
+    List<Path> indexedRoots() {
+        return roots.roots();
+    }
+
+    /// State of the last full scan of @p root, null if it is not a root.
+    RootRegistry.State rootState(Path root) {
+        return roots.state(root);
+    }
+
+    /// State of @p root after a full scan started at @p start.
+    private RootRegistry.State scanned(Path root, long start) {
+        long documents = 0;
+        for (IndexWriter writer : writersUnder(root)) {
+            try (IndexReader indexReader = DirectoryReader.open(writer)) {
+                documents += new IndexSearcher(indexReader).count(subtreeQuery(root));
+            }
+            catch (IOException e) {
+                return new RootRegistry.State(start, -1); // the count stays unknown
+            }
+        }
+        return new RootRegistry.State(start, documents);
+    }
+
+    /** Adds directory / file to the index and registers it as a root.
+     * A path which already is a root is reconciled instead.
      * @param docsPath - Path to the file / directory.
      */
     public void addToIndexedPaths(Path docsPath) {
-        File indexedDirs = new File(indexPath.toString() + File.separator + "indexed_dirs.txt");
-        try (FileWriter fileWriter = new FileWriter(indexedDirs, true)) {
-            add(docsPath);
-            fileWriter.write(docsPath.toAbsolutePath().toString() + "\n");
+        Path root = docsPath.toAbsolutePath();
+        long start = System.currentTimeMillis();
+        if (roots.contains(root)) {
+            System.out.println(root + " is already indexed, reindexing it.");
+            reconcileWithoutCommit(root);
         }
-        catch (IOException e) {
-            System.err.println("IOException raised by add:");
-            System.err.println(e.getMessage());
+        else {
+            if (shardRoots) {
+                createShard(root);
+            }
+            addWithoutCommit(root);
         }
+        roots.put(root, scanned(root, start));
+        commit();
     }
 
     public void remove(Path docsPath) {
         removeDoc(docsPath);
-        try {
-            indexWriter.commit();
-        }
-        catch (IOException e) {
-            System.err.println("Could not save changes to index.");
-            System.err.println(e.getMessage());
-        }
+        commit();
+    }
+
+    /// Removes documents, leaving the changes uncommitted.
+    void removeWithoutCommit(Path docsPath) {
+        removeDoc(docsPath);
     }
 
-    /** Removes directory / file from the index and removes the path to watched paths.
+    /** Removes directory / file from the index and from the roots.
      * @param docsPath - Path to the file / directory.
      */
     public void removeFromIndexedPaths(Path docsPath) {
-        boolean happened = false;
-        StringBuilder paths = new StringBuilder();
-        File indexedDirs = new File(indexPath + File.separator + "indexed_dirs.txt");
-        try (Scanner scanner = new Scanner(indexedDirs)){
-            while (scanner.hasNextLine()) {
-                String path = scanner.nextLine();
-                if (!path.equals(docsPath.toAbsolutePath().toString())) {
-                    paths.append(path);
-                }
-                else {
-                    happened = true;
-                    remove(docsPath);
-                }
-            }
-        }
-        catch (IOException e) {
-            System.err.println("IOException raised by remove:");
-            System.err.println(e.getMessage());
-        }
-
-        if (!happened) {
+        Path root = docsPath.toAbsolutePath();
+        if (!roots.contains(root)) {
             System.out.println("Specified path was not previously added by --add command.");
             return;
         }
-
-        try (FileWriter fileWriter = new FileWriter(indexedDirs, false)) {
-            fileWriter.write(paths.toString());
-        }
-        catch (IOException e) {
-            System.err.println("Failed to save directories:");
-            System.err.println(e.getMessage());
-        }
+        removeDoc(root);
+        dropShard(root);
+        roots.remove(root);
+        commit();
     }
 
+    /** Reconciles every root with its file tree, committing after each of them,
+     * or only once at the end with the BULK profile. Roots are reconciled in the order
+     * of the registry and their files in the order of SortedFileTree. The progress is
+     * saved in the commit data every -Dindexer.checkpoint.files files (default 10000) or
+     * -Dindexer.checkpoint.interval milliseconds (default 60000), and a reindex which was
+     * interrupted resumes after the last saved file. Roots which cannot be read are
+     * skipped and reported at the end.
+     */
     public void reindex() {
-        File indexedDirs = new File(indexPath + File.separator + "indexed_dirs.txt");
-        try (Scanner scanner = new Scanner(indexedDirs)) {
-            while (scanner.hasNextLine()) {
-                Path docsPath = Paths.get(scanner.nextLine());
-                if (!Files.isReadable(docsPath)) {
-                    System.err.println("Directory "
-                            + docsPath
-                            + " does not exist or is not readable");
-                    close();
-                    return;
+        List<Path> indexedRoots = roots.roots();
+        if (indexedRoots.isEmpty()) {
+            System.err.println("No indexed directories.");
+            return;
+        }
+        RootRegistry.Checkpoint resume = roots.checkpoint();
+        if (resume != null) {
+            System.out.println("Resuming the interrupted reindex at " + resume.root()
+                    + (resume.position() == null ? "" : " after " + resume.position()) + ".");
+        }
+        List<Path> skipped = new ArrayList<>();
+        for (Path docsPath : indexedRoots) {
+            Path resumeAfter = null;
+            if (resume != null) {
+                int order = docsPath.compareTo(resume.root());
+                if (order < 0 || order == 0 && resume.position() == null) {
+                    continue; // done by the interrupted run
+                }
+                if (order == 0) {
+                    resumeAfter = resume.position();
                 }
-                remove(docsPath);
-                add(docsPath);
+            }
+            if (!Files.isReadable(docsPath)) {
+                System.err.println("Directory "
+                        + docsPath
+                        + " does not exist or is not readable, skipping it.");
+                skipped.add(docsPath);
+                continue;
+            }
+            long start = System.currentTimeMillis();
+            reconcileWithoutCommit(docsPath, new Checkpointer(docsPath, resumeAfter));
+            roots.put(docsPath, scanned(docsPath, start));
+            roots.setCheckpoint(new RootRegistry.Checkpoint(docsPath, null));
+            if (profile.commitsEachStep()) {
+                commit();
             }
         }
-        catch(FileNotFoundException e) {
-            System.err.println("No file containing indexed directories.");
+        roots.setCheckpoint(null);
+        commit();
+        if (!skipped.isEmpty()) {
+            System.err.println("Skipped " + skipped.size() + " unreadable roots:");
+            for (Path root : skipped) {
+                System.err.println("    " + root);
+            }
+        }
+    }
+
+    /** Merges every index down to the number of segments chosen by the profile and commits,
+     * does nothing if the profile does not merge. Meant for the end of a bulk command:
+     * fewer segments make searches faster, but merging rewrites the whole index.
+     */
+    public void forceMerge() {
+        int maxSegments = profile.mergeSegments();
+        if (maxSegments <= 0) {
             return;
         }
-        try {
-            indexWriter.commit();
+        List<IndexWriter> writers = new ArrayList<>();
+        writers.add(indexWriter);
+        for (Shard shard : shards.values()) {
+            writers.add(shard.writer);
         }
-        catch (IOException e) {
-            System.err.println("Could not save changes to index.");
-            System.err.println(e.getMessage());
+        long start = System.nanoTime();
+        for (IndexWriter writer : writers) {
+            try {
+                writer.forceMerge(maxSegments);
+            }
+            catch (IOException e) {
+                System.err.println("Could not merge the index.");
+                System.err.println(e.getMessage());
+            }
         }
-    }
-
-    private static LanguageResult detectLanguage(String text) throws IOException {
-        LanguageDetector detector = new OptimaizeLangDetector().loadModels();
-        return detector.detect(text);
+        commit();
+        System.out.println(String.format("Merged into at most %d segments per index in %.1f s.",
+                maxSegments, (System.nanoTime() - start) / 1e9));
     }
 
     public void purge() throws IOException{
         indexWriter.deleteAll();
-        File indexedDirs = new File(indexPath + File.separator + "indexed_dirs.txt");
-        indexedDirs.delete();
-        try {
-            indexWriter.commit();
-        }
-        catch (IOException e) {
-            System.err.println("Could not save changes to index.");
-            System.err.println(e.getMessage());
-        }
+        for (Path root : new ArrayList<>(shards.keySet())) {
+            dropShard(root);
+        }
+        roots.clear();
+        // every document is gone, so is everything indexed the old way
+        legacyPaths = false;
+        legacyBodyFields.clear();
+        commit();
     }
 
     public void close() {
+        crawler.close();
+        pipeline.close();
+        if (FileClassifier.get().classified() > 0) {
+            System.out.println(FileClassifier.get().stats());
+        }
+        for (Shard shard : shards.values()) {
+            try {
+                shard.writer.close();
+                shard.directory.close();
+            }
+            catch (IOException e) {
+                System.err.println("Error closing the shard of " + shard.root + ".");
+            }
+        }
         try {
             indexWriter.close();
             indexDir.close();
@@ -4,22 +4,41 @@
 package pl.edu.mimuw.rm406247.indexer;
 
 import pl.edu.mimuw.rm406247.IndexerUtils;
+import pl.edu.mimuw.rm406247.Metrics;
 
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.Date;
 
 
 public class IndexerMain {
 
     private IndexerMain() {}
 
+    /** Runs the command given by @p args, or the watcher without arguments.
+     * The writers are tuned for the command (see IndexingProfile.forCommand()),
+     * --profile bulk|live before the command chooses the profile instead.
+     */
     public static void main(String[] args) {
+        IndexingProfile profile = null;
+        if (args.length >= 2 && args[0].equals("--profile")) {
+            try {
+                profile = IndexingProfile.parse(args[1]);
+            }
+            catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        if (profile == null) {
+            profile = IndexingProfile.forCommand(args);
+        }
 
         Path indexPath = IndexerUtils.indexPath();
 
@@ -30,86 +49,40 @@ public class IndexerMain {
             System.exit(1);
         }
 
-        try (Indexer indexer = new Indexer(indexPath)) {
-            if (args.length != 0) {
-                if (args[0].equals("--purge")) {
-                    if (args.length != 1) {
-                        System.out.println("Invalid number of arguments.");
-                    }
-                    else {
-                        indexer.purge();
-                    }
-                }
-
-                else if (args[0].equals("--add") || args[0].equals("--rm")) {
-                    if (args.length != 2) {
-                        System.out.println("Invalid number of arguments.");
-                    }
-                    else {
-                        Path docsPath = Paths.get(args[1]);
-                        if (!Files.isReadable(docsPath)) {
-                            System.err.println("Directory "
-                                    + docsPath
-                                    + " does not exist or is not readable");
-                            indexer.close();
-                            System.exit(1);
-                        }
-                        if (args[0].equals("--add")) {
-                            indexer.addToIndexedPaths(docsPath);
-                        }
-                        else {
-                            indexer.removeFromIndexedPaths(docsPath);
-                        }
-                    }
-                }
-
-                else if (args[0].equals("--reindex")) {
-                    if (args.length != 1) {
-                        System.out.println("Invalid number of arguments.");
-                    }
-                    else {
-                        indexer.reindex();
-                    }
-                }
-
-                else if (args[0].equals("--list")) {
-                    if (args.length != 1) {
-                        System.out.println("Invalid number of arguments.");
-                    }
-                    else {
-                        File indexedDirs = new File(indexPath + File.separator + "indexed_dirs.txt");
-                        try (Scanner scanner = new Scanner(indexedDirs)) {
-                            while (scanner.hasNextLine()) {
-                                System.out.println(scanner.nextLine());
-                            }
-                        }
-                        catch (FileNotFoundException e) {
-                            System.err.println("No file containing indexed directories.");
-                        }
-                    }
-                }
+        if (args.length != 0) {
+            // a running watcher holds the index, let it run the command on its (live) writer
+            int status = ControlChannel.forward(indexPath, absolutePaths(args));
+            if (status >= 0) {
+                System.exit(status);
+            }
+        }
 
-                else {
-                    System.out.println("Invalid parameter.");
+        Metrics.startLog();
+        int status = 0;
+        try (Indexer indexer = new Indexer(indexPath, IndexerUtils.indexingThreads(), profile)) {
+            if (args.length != 0) {
+                status = run(indexer, args);
+                if (status == 0 && IndexingProfile.mergesAfter(args)) {
+                    indexer.forceMerge();
                 }
             }
             else {
-                File indexedDirs = new File(indexPath + File.separator + "indexed_dirs.txt");
-                ArrayList<Path> paths = new ArrayList<>();
-                try (Scanner scanner = new Scanner(indexedDirs)) {
-                    while (scanner.hasNextLine()) {
-                        String pathString = scanner.nextLine().trim();
-                        paths.add(Paths.get(pathString));
-                    }
+                ArrayList<Path> paths = new ArrayList<>(indexer.indexedRoots());
+                ControlChannel channel = null;
+                try {
+                    channel = new ControlChannel(indexPath);
                 }
                 catch (IOException e) {
-                    System.err.println("Could not open file containing paths.");
+                    System.err.println("Could not open control channel, commands will not reach this watcher.");
                     System.err.println(e.getMessage());
                 }
                 try {
-                    new Watcher(indexer, paths).processEvents();
+                    new Watcher(indexer, paths, channel).processEvents();
                 }
                 catch (IOException e) {
+                    if (channel != null) {
+                        channel.close();
+                    }
                     System.err.println("Could not initialize watchservice.");
                     System.err.println(e.getMessage());
                 }
@@ -118,6 +91,83 @@ public class IndexerMain {
         catch (IOException e) {
             System.err.println("Error opening index.");
         }
-        System.exit(0);
+        System.exit(status);
+    }
+
+    /** Runs the command given by @p args on @p indexer.
+     *
+     * @return Exit status.
+     */
+    static int run(Indexer indexer, String[] args) throws IOException {
+        if (args[0].equals("--purge")) {
+            if (args.length != 1) {
+                System.out.println("Invalid number of arguments.");
+            }
+            else {
+                indexer.purge();
+            }
+        }
+
+        else if (args[0].equals("--add") || args[0].equals("--rm")) {
+            if (args.length != 2) {
+                System.out.println("Invalid number of arguments.");
+            }
+            else {
+                Path docsPath = Paths.get(args[1]);
+                if (!Files.isReadable(docsPath)) {
+                    System.err.println("Directory "
+                            + docsPath
+                            + " does not exist or is not readable");
+                    return 1;
+                }
+                if (args[0].equals("--add")) {
+                    indexer.addToIndexedPaths(docsPath);
+                }
+                else {
+                    indexer.removeFromIndexedPaths(docsPath);
+                }
+            }
+        }
+
+        else if (args[0].equals("--reindex")) {
+            if (args.length != 1) {
+                System.out.println("Invalid number of arguments.");
+            }
+            else {
+                indexer.reindex();
+            }
+        }
+
+        else if (args[0].equals("--list")) {
+            if (args.length != 1) {
+                System.out.println("Invalid number of arguments.");
+            }
+            else {
+                for (Path root : indexer.indexedRoots()) {
+                    RootRegistry.State state = indexer.rootState(root);
+                    if (state == null || state.lastScan() < 0) {
+                        System.out.println(root + "\t(not scanned since registered)");
+                    }
+                    else {
+                        System.out.println(root + "\t(" + state.documents() + " documents, last scan "
+                                + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(state.lastScan())) + ")");
+                    }
+                }
+            }
+        }
+
+        else {
+            System.out.println("Invalid parameter.");
+        }
+        return 0;
+    }
+
+    /// @p args with the path of --add and --rm made absolute, as the watcher runs elsewhere.
+    private static String[] absolutePaths(String[] args) {
+        String[] result = args.clone();
+        if (result.length == 2 && (result[0].equals("--add") || result[0].equals("--rm"))) {
+            result[1] = Paths.get(result[1]).toAbsolutePath().toString();
+        }
+        return result;
     }
 }
@@ -0,0 +1,102 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.indexer;
+
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/** Bounded pool of workers performing the per-file indexing action.
+ * The crawler (the thread walking the file tree) hands every file to
+ * @p submit, which blocks once @p queueCapacity files are waiting, so a
+ * fast walk never gets ahead of extraction by more than a few files.
+ * Every worker runs detection, parsing and language detection for its file
+ * and feeds the result straight to the (thread-safe) IndexWriter.
+ */
+class IndexingPipeline implements AutoCloseable {
+
+    private final ExecutorService workers;
+    private final Semaphore slots;
+    private final Phaser pending;
+    private final int threads;
+
+    /**
+     * @param threads - number of extraction workers.
+     * @param queueCapacity - number of files allowed to wait for a free worker.
+     */
+    IndexingPipeline(int threads, int queueCapacity) {
+        this.threads = threads;
+        this.workers = Executors.newFixedThreadPool(threads, new WorkerFactory());
+        this.slots = new Semaphore(threads + queueCapacity);
+        this.pending = new Phaser(1);
+    }
+
+    int threads() {
+        return threads;
+    }
+
+    /** Schedules @p fileAction for @p path, waiting for a free slot if the queue is full.
+     */
+    void submit(Path path, Consumer<Path> fileAction) {
+        slots.acquireUninterruptibly();
+        pending.register();
+        try {
+            workers.execute(() -> {
+                try {
+                    fileAction.accept(path);
+                }
+                catch (RuntimeException e) {
+                    synchronized (System.err) {
+                        System.err.println("Unexpected error indexing " + path.toString());
+                        System.err.println(e.toString());
+                    }
+                }
+                finally {
+                    pending.arriveAndDeregister();
+                    slots.release();
+                }
+            });
+        }
+        catch (RuntimeException e) {
+            pending.arriveAndDeregister();
+            slots.release();
+            throw e;
+        }
+    }
+
+    /** Blocks until every file submitted so far has been processed.
+     */
+    void await() {
+        pending.arriveAndAwaitAdvance();
+    }
+
+    @Override
+    public void close() {
+        workers.shutdown();
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "indexer-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.indexer;
+
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+
+import java.util.Locale;
+
+/** How the IndexWriters of the indexer are tuned for the command being run.
+ *
+ * BULK is meant for --add, --reindex and --purge, which write many documents at once
+ * and are only searched when they finish: a large RAM buffer (-Dindexer.bulk.ram=<MB>,
+ * default 256) flushed into non-compound segments, wide merges which are not throttled,
+ * no commit before the end of the command except the checkpoints of --reindex (see
+ * IndexerUtils.checkpointFiles()) and, with -Dindexer.bulk.merge=<n>, a forced merge
+ * down to at most n segments at the end of --add and --reindex.
+ *
+ * LIVE is meant for the watcher, which applies a few changes at a time and commits them
+ * every few seconds so that the searcher sees them soon: a small RAM buffer, small
+ * compound segments merged early and capped in size, and throttled merges, so that
+ * every commit stays cheap and reopening the index only loads a few small segments.
+ */
+public enum IndexingProfile {
+    BULK,
+    LIVE;
+
+    private static final double LIVE_RAM_MB = 16;
+
+    /// Applies the profile to @p config.
+    IndexWriterConfig configure(IndexWriterConfig config) {
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler();
+        if (this == BULK) {
+            config.setRAMBufferSizeMB(bulkRamMB());
+            config.setUseCompoundFile(false);
+            mergePolicy.setSegmentsPerTier(20);
+            mergePolicy.setMaxMergeAtOnce(20);
+            mergeScheduler.disableAutoIOThrottle();
+        }
+        else {
+            config.setRAMBufferSizeMB(LIVE_RAM_MB);
+            config.setUseCompoundFile(true);
+            mergePolicy.setFloorSegmentMB(1);
+            mergePolicy.setMaxMergedSegmentMB(1024);
+            mergeScheduler.enableAutoIOThrottle();
+        }
+        return config.setMergePolicy(mergePolicy).setMergeScheduler(mergeScheduler);
+    }
+
+    /// Whether changes are committed as soon as a step of a command is done, not only at its end.
+    boolean commitsEachStep() {
+        return this == LIVE;
+    }
+
+    /// Maximal number of segments left by the end of a command, 0 if the index is not merged.
+    int mergeSegments() {
+        return this == BULK ? Math.max(0, Integer.getInteger("indexer.bulk.merge", 0)) : 0;
+    }
+
+    private static double bulkRamMB() {
+        return Math.max(LIVE_RAM_MB, Integer.getInteger("indexer.bulk.ram", 256));
+    }
+
+    /** Profile of a command line: BULK for commands writing many documents,
+     * LIVE for the watcher (no arguments) and everything else.
+     */
+    static IndexingProfile forCommand(String[] args) {
+        if (args.length == 0) {
+            return LIVE;
+        }
+        switch (args[0]) {
+            case "--add":
+            case "--reindex":
+            case "--purge":
+                return BULK;
+            default:
+                return LIVE;
+        }
+    }
+
+    /** Whether the command line @p args writes documents in bulk (--add, --reindex),
+     * after which the index is worth merging. Other commands leave it as it is,
+     * whichever profile they run with.
+     */
+    static boolean mergesAfter(String[] args) {
+        return args.length > 0 && (args[0].equals("--add") || args[0].equals("--reindex"));
+    }
+
+    /// Profile named @p name, in any case.
+    static IndexingProfile parse(String name) {
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid profile: " + name + " (bulk/live expected)");
+        }
+    }
+}
@@ -27,8 +27,11 @@ public class IndexingVisitor extends SimpleFileVisitor<Path> {
 
     @Override
     public FileVisitResult visitFileFailed(Path file, IOException io) {
-        System.err.println("Couldn't visit " + file.toAbsolutePath().toString());
-        System.err.println(io.getMessage());
+        // called from several crawler threads at once
+        synchronized (System.err) {
+            System.err.println("Couldn't visit " + file.toAbsolutePath().toString());
+            System.err.println(io.getMessage());
+        }
         return FileVisitResult.CONTINUE;
     }
 }
\ No newline at end of file
@@ -0,0 +1,109 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.indexer;
+
+import org.apache.tika.langdetect.OptimaizeLangDetector;
+import org.apache.tika.language.detect.LanguageDetector;
+import org.apache.tika.language.detect.LanguageResult;
+import pl.edu.mimuw.rm406247.Metrics;
+
+/** Process-wide language detection.
+ * Language models are loaded once, every thread gets its own lightweight
+ * detector on top of them (detectors keep the text they were fed, so they
+ * can't be shared). Only a bounded sample of the text is examined:
+ * short texts are used whole, longer ones contribute a window from the
+ * beginning, the middle and the end.
+ */
+public class LanguageService {
+
+    public static final int DEFAULT_SAMPLE_SIZE = 6000;
+
+    private static final LanguageService instance = new LanguageService(DEFAULT_SAMPLE_SIZE);
+
+    private final int sampleSize;
+    private final ThreadLocal<LanguageDetector> detectors;
+    private final Metrics.Timer timer = Metrics.timer("indexer.detectLanguage");
+
+    /** Result of a single detection together with the time it took.
+     */
+    public static class Detection {
+        private final LanguageResult result;
+        private final long nanos;
+
+        private Detection(LanguageResult result, long nanos) {
+            this.result = result;
+            this.nanos = nanos;
+        }
+
+        public LanguageResult result() {
+            return result;
+        }
+
+        public long nanos() {
+            return nanos;
+        }
+    }
+
+    LanguageService(int sampleSize) {
+        this.sampleSize = sampleSize;
+        this.detectors = ThreadLocal.withInitial(() -> new OptimaizeLangDetector().loadModels());
+    }
+
+    public static LanguageService get() {
+        return instance;
+    }
+
+    public Detection detect(CharSequence text) {
+        long start = System.nanoTime();
+        LanguageDetector detector = detectors.get();
+        detector.reset();
+        detector.addText(sample(text, sampleSize));
+        LanguageResult result = detector.detect();
+        long nanos = System.nanoTime() - start;
+        timer.record(nanos);
+        return new Detection(result, nanos);
+    }
+
+    public long detections() {
+        return timer.getCount();
+    }
+
+    public long detectionNanos() {
+        return timer.totalNanos();
+    }
+
+    /** Picks at most @p size characters representing @p text.
+     * Windows are cut at whitespace so that no word is split in half.
+     */
+    static CharSequence sample(CharSequence text, int size) {
+        int length = text.length();
+        if (length <= size) {
+            return text;
+        }
+        int window = size / 3;
+        StringBuilder sample = new StringBuilder(size + 2);
+        appendWindow(sample, text, 0, window);
+        sample.append(' ');
+        appendWindow(sample, text, (length - window) / 2, window);
+        sample.append(' ');
+        appendWindow(sample, text, length - window, window);
+        return sample;
+    }
+
+    private static void appendWindow(StringBuilder sample, CharSequence text, int from, int window) {
+        int start = from;
+        int end = Math.min(text.length(), from + window);
+        if (start > 0) {
+            while (start < end && !Character.isWhitespace(text.charAt(start - 1))) {
+                start++;
+            }
+        }
+        if (end < text.length()) {
+            while (end > start && !Character.isWhitespace(text.charAt(end))) {
+                end--;
+            }
+        }
+        sample.append(text, start, end);
+    }
+}
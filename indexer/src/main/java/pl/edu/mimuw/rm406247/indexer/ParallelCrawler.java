@@ -0,0 +1,214 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.indexer;
+
+import pl.edu.mimuw.rm406247.Metrics;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Walks file trees like Files.walkFileTree() without following links, but lists
+ * directories concurrently on a fork/join pool: every directory is a task which lists
+ * its entries, visits its files and forks one task per subdirectory. On wide trees and
+ * slow (network) file systems this keeps several listings in flight instead of one.
+ *
+ * The visitor is called from several threads at once and must be thread-safe.
+ * Files of one directory are visited in the order of the listing, directories
+ * are visited before their entries and left after all of them, but there is no
+ * order between different directories. A visitor which blocks, e.g. handing files
+ * to the bounded IndexingPipeline, holds back the listing as well.
+ * SKIP_SUBTREE and TERMINATE are honored, SKIP_SIBLINGS is treated as CONTINUE.
+ */
+class ParallelCrawler implements AutoCloseable {
+
+    private static final Metrics.Timer CRAWL = Metrics.timer("indexer.crawl");
+    private static final Metrics.Counter DIRECTORIES = Metrics.counter("indexer.directories");
+
+    /// Directories and files found by one crawl, and how long it took.
+    static class Stats {
+        private final long directories;
+        private final long files;
+        private final long nanos;
+
+        Stats(long directories, long files, long nanos) {
+            this.directories = directories;
+            this.files = files;
+            this.nanos = nanos;
+        }
+
+        long directories() {
+            return directories;
+        }
+
+        long files() {
+            return files;
+        }
+
+        long nanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(nanos, 1) / 1e9;
+            return String.format(Locale.ROOT, "%d directories and %d files in %.1f s"
+                            + " (%.1f directories/s, %.1f files/s)",
+                    directories, files, seconds, directories / seconds, files / seconds);
+        }
+    }
+
+    /// State of one crawl shared by its tasks.
+    private static class Crawl {
+        final FileVisitor<Path> visitor;
+        final LongAdder directories = new LongAdder();
+        final LongAdder files = new LongAdder();
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        volatile boolean terminated = false;
+
+        Crawl(FileVisitor<Path> visitor) {
+            this.visitor = visitor;
+        }
+
+        /// @return Whether the crawl goes on after the visitor returned @p result.
+        boolean goOn(FileVisitResult result) {
+            if (result == FileVisitResult.TERMINATE) {
+                terminated = true;
+            }
+            return !terminated;
+        }
+    }
+
+    /// Visits one directory and, in tasks of their own, the directories in it.
+    private static class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Crawl crawl;
+        private final Path dir;
+        private final BasicFileAttributes attributes;
+
+        DirectoryTask(Crawl crawl, Path dir, BasicFileAttributes attributes) {
+            this.crawl = crawl;
+            this.dir = dir;
+            this.attributes = attributes;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                visit();
+            }
+            catch (IOException e) {
+                crawl.failure.compareAndSet(null, e);
+                crawl.terminated = true;
+            }
+        }
+
+        private void visit() throws IOException {
+            if (crawl.terminated) {
+                return;
+            }
+            List<Path> entries = new ArrayList<>();
+            try (DirectoryStream<Path> directory = Files.newDirectoryStream(dir)) {
+                for (Path entry : directory) {
+                    entries.add(entry);
+                }
+            }
+            catch (IOException e) {
+                crawl.goOn(crawl.visitor.visitFileFailed(dir, e));
+                return;
+            }
+            crawl.directories.increment();
+            DIRECTORIES.increment();
+            FileVisitResult result = crawl.visitor.preVisitDirectory(dir, attributes);
+            if (!crawl.goOn(result) || result == FileVisitResult.SKIP_SUBTREE) {
+                return;
+            }
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            for (Path entry : entries) {
+                if (crawl.terminated) {
+                    break;
+                }
+                BasicFileAttributes entryAttributes;
+                try {
+                    entryAttributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                }
+                catch (IOException e) {
+                    crawl.goOn(crawl.visitor.visitFileFailed(entry, e));
+                    continue;
+                }
+                if (entryAttributes.isDirectory()) {
+                    subdirectories.add(new DirectoryTask(crawl, entry, entryAttributes));
+                }
+                else {
+                    crawl.files.increment();
+                    crawl.goOn(crawl.visitor.visitFile(entry, entryAttributes));
+                }
+            }
+            invokeAll(subdirectories);
+            if (!crawl.terminated) {
+                crawl.goOn(crawl.visitor.postVisitDirectory(dir, null));
+            }
+        }
+    }
+
+    private final ForkJoinPool pool;
+
+    /// @param threads - number of directories listed at once.
+    ParallelCrawler(int threads) {
+        this.pool = new ForkJoinPool(threads, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("crawler-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
+    /** Visits @p start and everything below it, returning once all of it was visited.
+     * Entries which cannot be read are given to visitFileFailed(), as by Files.walkFileTree().
+     *
+     * @throws IOException the first one thrown by the visitor, which ends the crawl.
+     */
+    Stats crawl(Path start, FileVisitor<Path> visitor) throws IOException {
+        long begin = System.nanoTime();
+        Crawl crawl = new Crawl(visitor);
+        BasicFileAttributes attributes = null;
+        try {
+            attributes = Files.readAttributes(start, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+        catch (IOException e) {
+            visitor.visitFileFailed(start, e);
+        }
+        if (attributes != null && !attributes.isDirectory()) {
+            crawl.files.increment();
+            visitor.visitFile(start, attributes);
+        }
+        else if (attributes != null) {
+            pool.invoke(new DirectoryTask(crawl, start, attributes));
+        }
+        if (crawl.failure.get() != null) {
+            throw crawl.failure.get();
+        }
+        long nanos = System.nanoTime() - begin;
+        CRAWL.record(nanos);
+        return new Stats(crawl.directories.sum(), crawl.files.sum(), nanos);
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+}
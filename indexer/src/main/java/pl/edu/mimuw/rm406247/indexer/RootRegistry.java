@@ -0,0 +1,174 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.indexer;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/** Directories added with --add, each with the state of its last full scan.
+ * The registry is saved in the user data of the index commits, so that
+ * it always describes the documents of the commit it was saved with.
+ * Entries are "root:<path>" -> "<last scan in ms since epoch> <documents>",
+ * the checkpoint of an unfinished --reindex is kept in "reindex.root" and "reindex.position".
+ */
+class RootRegistry {
+
+    /// Present in every commit made since roots are kept in the index.
+    static final String VERSION_KEY = "roots.version";
+    private static final String VERSION = "1";
+    private static final String ROOT_PREFIX = "root:";
+    private static final String CHECKPOINT_ROOT_KEY = "reindex.root";
+    private static final String CHECKPOINT_POSITION_KEY = "reindex.position";
+
+    static class State {
+
+        /// State of a root which was never fully scanned since it is registered here.
+        static final State UNKNOWN = new State(-1, -1);
+
+        private final long lastScan;
+        private final long documents;
+
+        State(long lastScan, long documents) {
+            this.lastScan = lastScan;
+            this.documents = documents;
+        }
+
+        /// Time of the last full scan, -1 if unknown.
+        long lastScan() {
+            return lastScan;
+        }
+
+        /// Number of documents under the root after the last full scan, -1 if unknown.
+        long documents() {
+            return documents;
+        }
+    }
+
+    /** Progress of a reindex which did not finish: every root before @p root is reconciled,
+     * and so is every file of @p root up to @p position in the order of SortedFileTree,
+     * or the whole root if the position is null.
+     */
+    static class Checkpoint {
+        private final Path root;
+        private final Path position;
+
+        Checkpoint(Path root, Path position) {
+            this.root = root;
+            this.position = position;
+        }
+
+        Path root() {
+            return root;
+        }
+
+        /// Last file of root() which is done, null if all of them are.
+        Path position() {
+            return position;
+        }
+    }
+
+    private final Map<Path, State> roots = new TreeMap<>();
+    private Checkpoint checkpoint = null;
+    private boolean changed = false;
+
+    /// Registry saved in @p commitData, empty if there is none.
+    static RootRegistry of(Map<String, String> commitData) {
+        RootRegistry registry = new RootRegistry();
+        for (Map.Entry<String, String> entry : commitData.entrySet()) {
+            if (!entry.getKey().startsWith(ROOT_PREFIX)) {
+                continue;
+            }
+            State state = State.UNKNOWN;
+            String[] values = entry.getValue().split(" ");
+            try {
+                state = new State(Long.parseLong(values[0]), Long.parseLong(values[1]));
+            }
+            catch (RuntimeException e) {
+                // the root itself is still valid
+            }
+            registry.roots.put(Paths.get(entry.getKey().substring(ROOT_PREFIX.length())), state);
+        }
+        String checkpointRoot = commitData.get(CHECKPOINT_ROOT_KEY);
+        if (checkpointRoot != null) {
+            String position = commitData.get(CHECKPOINT_POSITION_KEY);
+            registry.checkpoint = new Checkpoint(Paths.get(checkpointRoot),
+                    position == null ? null : Paths.get(position));
+        }
+        return registry;
+    }
+
+    /// Whether @p commitData was written with a registry, even an empty one.
+    static boolean isStoredIn(Map<String, String> commitData) {
+        return commitData.containsKey(VERSION_KEY);
+    }
+
+    synchronized boolean contains(Path root) {
+        return roots.containsKey(root);
+    }
+
+    synchronized void put(Path root, State state) {
+        roots.put(root, state);
+        changed = true;
+    }
+
+    /// @return Whether @p root was registered.
+    synchronized boolean remove(Path root) {
+        changed = true;
+        return roots.remove(root) != null;
+    }
+
+    synchronized void clear() {
+        roots.clear();
+        checkpoint = null;
+        changed = true;
+    }
+
+    /// Checkpoint of the reindex which did not finish, null if there is none.
+    synchronized Checkpoint checkpoint() {
+        return checkpoint;
+    }
+
+    /// Replaces the checkpoint, null once the reindex is done.
+    synchronized void setCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+        changed = true;
+    }
+
+    synchronized List<Path> roots() {
+        return new ArrayList<>(roots.keySet());
+    }
+
+    synchronized State state(Path root) {
+        return roots.get(root);
+    }
+
+    /// Marks the registry as changed, so that it is saved with the next commit.
+    synchronized void touch() {
+        changed = true;
+    }
+
+    /** User data to save with the next commit, null if the registry did not
+     * change since the last call, in which case the previous data still holds.
+     */
+    synchronized Map<String, String> takeCommitData() {
+        if (!changed) {
+            return null;
+        }
+        changed = false;
+        Map<String, String> data = new HashMap<>();
+        data.put(VERSION_KEY, VERSION);
+        for (Map.Entry<Path, State> entry : roots.entrySet()) {
+            data.put(ROOT_PREFIX + entry.getKey().toString(),
+                    entry.getValue().lastScan() + " " + entry.getValue().documents());
+        }
+        if (checkpoint != null) {
+            data.put(CHECKPOINT_ROOT_KEY, checkpoint.root.toString());
+            if (checkpoint.position != null) {
+                data.put(CHECKPOINT_POSITION_KEY, checkpoint.position.toString());
+            }
+        }
+        return data;
+    }
+}
@@ -0,0 +1,86 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.indexer;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/** Walks a file tree like Files.walkFileTree() without following links, but visits
+ * the entries of every directory sorted by name. Walks of an unchanged tree thus
+ * visit its files in the same order, and a file is a position in the walk which
+ * the next walk can compare every file with (see compare()).
+ */
+final class SortedFileTree {
+
+    private static final Comparator<Path> BY_NAME = Comparator.comparing(path -> path.getFileName().toString());
+
+    private SortedFileTree() {}
+
+    /** Visits @p start and everything below it in order.
+     * Entries which cannot be read are given to visitFileFailed(), as by Files.walkFileTree().
+     */
+    static void walk(Path start, FileVisitor<Path> visitor) throws IOException {
+        visit(start, visitor);
+    }
+
+    private static FileVisitResult visit(Path path, FileVisitor<Path> visitor) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+        catch (IOException e) {
+            return visitor.visitFileFailed(path, e);
+        }
+        if (!attributes.isDirectory()) {
+            return visitor.visitFile(path, attributes);
+        }
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> directory = Files.newDirectoryStream(path)) {
+            for (Path entry : directory) {
+                entries.add(entry);
+            }
+        }
+        catch (IOException e) {
+            return visitor.visitFileFailed(path, e);
+        }
+        FileVisitResult result = visitor.preVisitDirectory(path, attributes);
+        if (result != FileVisitResult.CONTINUE) {
+            return result == FileVisitResult.SKIP_SUBTREE ? FileVisitResult.CONTINUE : result;
+        }
+        entries.sort(BY_NAME);
+        for (Path entry : entries) {
+            result = visit(entry, visitor);
+            if (result == FileVisitResult.TERMINATE) {
+                return result;
+            }
+            if (result == FileVisitResult.SKIP_SIBLINGS) {
+                break;
+            }
+        }
+        return visitor.postVisitDirectory(path, null);
+    }
+
+    /** Order in which a walk visits @p a and @p b, two paths below the same start:
+     * negative if @p a comes first, 0 if they are the same path.
+     */
+    static int compare(Path a, Path b) {
+        int names = Math.min(a.getNameCount(), b.getNameCount());
+        for (int i = 0; i < names; i++) {
+            int result = a.getName(i).toString().compareTo(b.getName(i).toString());
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(a.getNameCount(), b.getNameCount());
+    }
+}
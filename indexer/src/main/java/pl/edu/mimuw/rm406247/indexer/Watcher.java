@@ -30,12 +30,17 @@
  */
 package pl.edu.mimuw.rm406247.indexer;
 
+import pl.edu.mimuw.rm406247.IndexerUtils;
+
 import java.nio.file.*;
 import static java.nio.file.StandardWatchEventKinds.*;
 import static java.nio.file.LinkOption.*;
 import java.nio.file.attribute.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Example to watch a directory (or tree) for changes to files.
@@ -43,9 +48,16 @@ import java.util.*;
 
 public class Watcher {
 
+    /// Longest wait for events while commands may arrive through the control channel, in milliseconds.
+    private static final long CONTROL_POLL = 100;
+
     private final Indexer indexer;
+    private final ControlChannel channel;
+    private final EventCoalescer coalescer;
     private final WatchService watcher;
     private final Map<WatchKey,Path> keys;
+    private final ParallelCrawler crawler = new ParallelCrawler(IndexerUtils.crawlThreads());
+    private final boolean quiet = IndexerUtils.quiet();
 
     @SuppressWarnings("unchecked")
     static <T> WatchEvent<T> cast(WatchEvent<?> event) {
@@ -64,9 +76,9 @@ public class Watcher {
      * Register the given directory, and all its sub-directories, with the
      * WatchService.
      */
-    private void registerAll(final Path start) throws IOException {
-        // register directory and sub-directories
-        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+    private ParallelCrawler.Stats registerAll(final Path start) throws IOException {
+        // register directory and sub-directories, listed in parallel
+        return crawler.crawl(start, new SimpleFileVisitor<Path>() {
             @Override
             public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
                     throws IOException
@@ -76,23 +88,54 @@ public class Watcher {
             }
             @Override
             public FileVisitResult visitFileFailed(Path dir, IOException io) {
-                System.err.println("Couldn't watch directory " + dir.toAbsolutePath().toString());
-                System.err.println(io.getMessage());
+                synchronized (System.err) {
+                    System.err.println("Couldn't watch directory " + dir.toAbsolutePath().toString());
+                    System.err.println(io.getMessage());
+                }
                 return FileVisitResult.CONTINUE;
             }
         });
     }
 
+    /**
+     * Registers sub-directories of @p dir that may have been created
+     * while events were being lost.
+     */
+    private void registerNew(Path dir) {
+        try {
+            if (Files.isDirectory(dir, NOFOLLOW_LINKS)) {
+                registerAll(dir);
+            }
+        }
+        catch (IOException x) {
+            System.err.println("Couldn't watch directory " + dir.toAbsolutePath().toString());
+            System.err.println(x.getMessage());
+        }
+    }
+
     /**
      * Creates a WatchService and registers the given directory
+     *
+     * @param channel - source of commands forwarded by other invocations, may be null.
      */
-    Watcher(Indexer indexer, ArrayList<Path> dirs) throws IOException {
-        this.watcher = FileSystems.getDefault().newWatchService();
+    Watcher(Indexer indexer, ArrayList<Path> dirs, ControlChannel channel) throws IOException {
         this.indexer = indexer;
-        this.keys = new HashMap<WatchKey,Path>();
+        this.channel = channel;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.coalescer = new EventCoalescer(indexer,
+                Long.getLong("indexer.watch.window", 500),
+                Integer.getInteger("indexer.watch.batch", 1000),
+                Long.getLong("indexer.commit.interval", 5000),
+                Integer.getInteger("indexer.commit.docs", 1000),
+                Long.getLong("indexer.watch.rescan", 10000),
+                this::registerNew);
+        this.keys = new ConcurrentHashMap<WatchKey,Path>();
         for (Path dir : dirs) {
             System.out.println("Observing: " + dir.toAbsolutePath().toString());
-            registerAll(dir);
+            ParallelCrawler.Stats stats = registerAll(dir);
+            if (!quiet) {
+                System.out.println("Crawled " + stats + ".");
+            }
         }
     }
 
@@ -100,15 +143,64 @@ public class Watcher {
      * Process all events for keys queued to the watcher
      */
     void processEvents() {
+        // on termination stop watching and wait until pending changes are committed
+        CountDownLatch flushed = new CountDownLatch(1);
+        Thread shutdownHook = new Thread(() -> {
+            try {
+                watcher.close();
+                flushed.await(30, TimeUnit.SECONDS);
+            }
+            catch (IOException | InterruptedException e) {
+                // nothing more can be done
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        try {
+            watchLoop();
+        }
+        finally {
+            if (channel != null) {
+                channel.close();
+            }
+            coalescer.close();
+            flushed.countDown();
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        }
+        catch (IllegalStateException e) {
+            // already shutting down
+        }
+    }
+
+    private void watchLoop() {
         for(;;) {
-            // wait for key to be signalled
+            // wait for key to be signalled, or until pending changes are due
             WatchKey key;
             try {
-                key = watcher.take();
+                long timeout = coalescer.millisUntilDue();
+                if (channel != null) {
+                    ControlChannel.Request request = channel.poll();
+                    if (request != null) {
+                        runCommand(request);
+                        continue;
+                    }
+                    timeout = timeout < 0 ? CONTROL_POLL : Math.min(timeout, CONTROL_POLL);
+                }
+                if (timeout < 0) {
+                    key = watcher.take();
+                }
+                else {
+                    key = watcher.poll(timeout, TimeUnit.MILLISECONDS);
+                }
             }
-            catch (InterruptedException x) {
+            catch (InterruptedException | ClosedWatchServiceException x) {
                 return;
             }
+            if (key == null) {
+                coalescer.tick();
+                continue;
+            }
 
             Path dir = keys.get(key);
             if (dir == null) {
@@ -126,8 +218,9 @@ public class Watcher {
             for (WatchEvent<?> event: key.pollEvents()) {
                 WatchEvent.Kind kind = event.kind();
 
-                // TBD - provide example of how OVERFLOW event is handled
+                // events were lost, the directory has to be compared with the index
                 if (kind == OVERFLOW) {
+                    coalescer.postRescan(dir);
                     continue;
                 }
 
@@ -137,22 +230,17 @@ public class Watcher {
                 Path child = dir.resolve(name);
 
                 if (kind == ENTRY_DELETE) {
-                    System.out.println("Removing " + child.toAbsolutePath().toString());
-                    indexer.remove(child);
+                    coalescer.post(child, EventCoalescer.Action.REMOVE);
                 }
 
                 if (kind == ENTRY_MODIFY && !(Files.isDirectory(child, NOFOLLOW_LINKS))) {
-                    System.out.println("Removing index " + child.toAbsolutePath().toString());
-                    indexer.remove(child);
-                    System.out.println("Adding index " + child.toAbsolutePath().toString());
-                    indexer.add(child);
+                    coalescer.post(child, EventCoalescer.Action.REPLACE);
                 }
 
                 // if directory is created, and watching recursively, then
                 // register it and its sub-directories
                 if (kind == ENTRY_CREATE) {
-                    System.out.println("Adding index " + child.toAbsolutePath().toString());
-                    indexer.add(child);
+                    coalescer.post(child, EventCoalescer.Action.ADD);
                     try {
                         if (Files.isDirectory(child, NOFOLLOW_LINKS)) {
                             registerAll(child);
@@ -164,16 +252,114 @@ public class Watcher {
                 }
             }
 
+            coalescer.tick();
+
             // reset key and remove from set if directory no longer accessible
             boolean valid = key.reset();
             if (!valid) {
                 keys.remove(key);
 
-                // all directories are inaccessible
-                if (keys.isEmpty()) {
+                // all directories are inaccessible and no more can be added
+                if (keys.isEmpty() && channel == null) {
                     break;
                 }
             }
         }
     }
+
+    /**
+     * Runs a command forwarded through the control channel on the indexer,
+     * after the events received before it. Its output is copied to the client.
+     */
+    private void runCommand(ControlChannel.Request request) {
+        String[] args = request.args();
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        int status = 1;
+        try {
+            coalescer.drain();
+            System.setOut(tee(out, request.out()));
+            System.setErr(tee(err, request.out()));
+            System.out.println("Running forwarded command: " + String.join(" ", args));
+            if (args.length == 0) {
+                System.out.println("Invalid number of arguments.");
+            }
+            else {
+                status = IndexerMain.run(indexer, args);
+            }
+            if (status == 0) {
+                updateRegistrations(args);
+            }
+        }
+        catch (IOException x) {
+            System.err.println("Error running forwarded command.");
+            System.err.println(x.getMessage());
+        }
+        finally {
+            System.out.flush();
+            System.err.flush();
+            System.setOut(out);
+            System.setErr(err);
+            request.finish(status);
+        }
+    }
+
+    /**
+     * Starts or stops watching directories added or removed by a command.
+     */
+    private void updateRegistrations(String[] args) throws IOException {
+        if (args[0].equals("--add") && args.length == 2) {
+            Path dir = Paths.get(args[1]);
+            if (Files.isDirectory(dir, NOFOLLOW_LINKS)) {
+                System.out.println("Observing: " + dir.toAbsolutePath().toString());
+                registerAll(dir);
+            }
+        }
+        else if (args[0].equals("--rm") && args.length == 2) {
+            unregisterAll(Paths.get(args[1]));
+        }
+        else if (args[0].equals("--purge")) {
+            for (WatchKey key : keys.keySet()) {
+                key.cancel();
+            }
+            keys.clear();
+        }
+    }
+
+    /**
+     * Stops watching @p start and all its sub-directories.
+     */
+    private void unregisterAll(Path start) {
+        Iterator<Map.Entry<WatchKey, Path>> iterator = keys.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<WatchKey, Path> entry = iterator.next();
+            if (entry.getValue().startsWith(start)) {
+                entry.getKey().cancel();
+                iterator.remove();
+            }
+        }
+    }
+
+    /// Stream writing to both @p first and @p second.
+    private static PrintStream tee(PrintStream first, PrintStream second) {
+        return new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                first.write(b);
+                second.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                first.write(b, off, len);
+                second.write(b, off, len);
+            }
+
+            @Override
+            public void flush() {
+                first.flush();
+                second.flush();
+            }
+        }, true);
+    }
 }
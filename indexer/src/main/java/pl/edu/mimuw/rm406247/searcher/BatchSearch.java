@@ -0,0 +1,244 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.searcher;
+
+import pl.edu.mimuw.rm406247.AnalyzerRegistry;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Runs queries read from a file or the standard input, one per line, without the console.
+ * Lines starting with % set the query type (%term, %phrase, %fuzzy, %prefix), %lang,
+ * %limit and %details for the queries following them; empty lines and lines starting
+ * with # are skipped. Every query is written to the standard output as a JSON line
+ * with its results and latency, in the order of the input even if queries run
+ * concurrently. The last line is a summary with the throughput and latency percentiles.
+ */
+class BatchSearch {
+
+    /// Query of one input line, or the reason why there is none.
+    private static class Line {
+        final int number;
+        final SearchRequest request;
+        final String error;
+
+        Line(int number, SearchRequest request, String error) {
+            this.number = number;
+            this.request = request;
+            this.error = error;
+        }
+    }
+
+    private BatchSearch() {}
+
+    /** Runs the batch described by the arguments following --batch:
+     * [<file> | -] [--threads <n>]
+     *
+     * @return Exit status.
+     */
+    static int run(Path indexPath, String[] args) {
+        String input = "-";
+        int threads = 1;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                try {
+                    threads = Math.max(1, Integer.parseInt(args[++i]));
+                }
+                catch (NumberFormatException e) {
+                    System.err.println("Invalid number of threads: " + args[i]);
+                    return 1;
+                }
+            }
+            else {
+                input = args[i];
+            }
+        }
+
+        List<Line> lines;
+        try (BufferedReader reader = input.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(input), StandardCharsets.UTF_8)) {
+            lines = parse(reader);
+        }
+        catch (IOException e) {
+            System.err.println("Could not read queries from " + input + ".");
+            System.err.println(e.getMessage());
+            return 1;
+        }
+
+        SearchService service = Searcher.openService(indexPath);
+        if (service == null) {
+            return 1;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long[] latencies = new long[lines.size()];
+        int errors = 0;
+        long start = System.nanoTime();
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < lines.size(); i++) {
+                int index = i;
+                results.add(executor.submit(() -> execute(service, lines.get(index), latencies, index)));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                String json;
+                try {
+                    json = results.get(i).get();
+                }
+                catch (ExecutionException e) {
+                    json = error(lines.get(i).number, String.valueOf(e.getCause()));
+                }
+                if (latencies[i] < 0) {
+                    errors++;
+                }
+                System.out.println(json);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+        finally {
+            executor.shutdownNow();
+            try {
+                service.close();
+            }
+            catch (IOException e) {
+                System.err.println("Error closing the index.");
+            }
+        }
+        long wallNanos = System.nanoTime() - start;
+
+        long[] succeeded = Arrays.stream(latencies).filter(latency -> latency >= 0).sorted().toArray();
+        double seconds = wallNanos / 1e9;
+        String summary = String.format(Locale.ROOT,
+                "{\"summary\":{\"queries\":%d,\"errors\":%d,\"threads\":%d,\"wallMs\":%.1f,\"qps\":%.1f,"
+                        + "\"meanMs\":%.3f,\"p50Ms\":%.3f,\"p90Ms\":%.3f,\"p99Ms\":%.3f,\"maxMs\":%.3f}}",
+                lines.size(), errors, threads, wallNanos / 1e6,
+                seconds > 0 ? succeeded.length / seconds : 0,
+                Arrays.stream(succeeded).average().orElse(0) / 1e6,
+                percentile(succeeded, 0.5) / 1e6, percentile(succeeded, 0.9) / 1e6,
+                percentile(succeeded, 0.99) / 1e6, percentile(succeeded, 1) / 1e6);
+        System.out.println(summary);
+        System.err.println(String.format(Locale.ROOT,
+                "%d queries (%d errors) in %.1f ms on %d threads: %.1f queries/s, latency p50 %.2f ms, p99 %.2f ms",
+                lines.size(), errors, wallNanos / 1e6, threads,
+                seconds > 0 ? succeeded.length / seconds : 0,
+                percentile(succeeded, 0.5) / 1e6, percentile(succeeded, 0.99) / 1e6));
+        return errors == 0 ? 0 : 1;
+    }
+
+    /// Turns the input into queries, applying the directives in the order they appear.
+    private static List<Line> parse(BufferedReader reader) throws IOException {
+        List<Line> lines = new ArrayList<>();
+        Searcher.QueryType queryType = Searcher.QueryType.TERM;
+        String lang = "en";
+        int limit = Integer.MAX_VALUE;
+        boolean details = false;
+        String text;
+        int number = 0;
+        while ((text = reader.readLine()) != null) {
+            number++;
+            text = text.trim();
+            if (text.isEmpty() || text.startsWith("#")) {
+                continue;
+            }
+            if (!text.startsWith("%")) {
+                try {
+                    lines.add(new Line(number, new SearchRequest(queryType, lang, text, limit, null,
+                            details, false, Searcher.HighlightMode.OFFSETS), null));
+                }
+                catch (IllegalArgumentException e) {
+                    lines.add(new Line(number, null, e.getMessage()));
+                }
+                continue;
+            }
+            String[] directive = text.split(" +");
+            String error = null;
+            Searcher.QueryType type = null;
+            for (Searcher.QueryType candidate : Searcher.QueryType.values()) {
+                if (directive[0].equals("%" + candidate.name().toLowerCase(Locale.ROOT))) {
+                    type = candidate;
+                }
+            }
+            if (type != null && directive.length == 1) {
+                queryType = type;
+            }
+            else if (directive[0].equals("%lang") && directive.length == 2) {
+                if (AnalyzerRegistry.isRegistered(directive[1])) {
+                    lang = directive[1];
+                }
+                else {
+                    error = "Invalid language: " + directive[1];
+                }
+            }
+            else if (directive[0].equals("%limit") && directive.length == 2) {
+                try {
+                    limit = Integer.parseInt(directive[1]);
+                    if (limit < 0) {
+                        throw new NumberFormatException();
+                    }
+                    if (limit == 0) {
+                        limit = Integer.MAX_VALUE;
+                    }
+                }
+                catch (NumberFormatException e) {
+                    error = "Invalid limit: " + directive[1];
+                }
+            }
+            else if (directive[0].equals("%details") && directive.length == 2
+                    && (directive[1].equals("on") || directive[1].equals("off"))) {
+                details = directive[1].equals("on");
+            }
+            else {
+                error = "Invalid directive: " + text;
+            }
+            if (error != null) {
+                lines.add(new Line(number, null, error));
+            }
+        }
+        return lines;
+    }
+
+    /// Runs the query of @p line, storing its latency in latencies[index], -1 if it failed.
+    private static String execute(SearchService service, Line line, long[] latencies, int index) {
+        latencies[index] = -1;
+        if (line.request == null) {
+            return error(line.number, line.error);
+        }
+        long start = System.nanoTime();
+        try {
+            SearchResult result = service.search(line.request);
+            latencies[index] = System.nanoTime() - start;
+            return "{\"line\":" + line.number + ",\"result\":" + Json.result(line.request, result) + "}";
+        }
+        catch (IOException | RuntimeException e) {
+            return error(line.number, e.toString());
+        }
+    }
+
+    private static String error(int number, String message) {
+        return "{\"line\":" + number + ",\"error\":" + Json.quote(message) + "}";
+    }
+
+    /// Value below which @p fraction of @p sorted lies, 0 if it is empty.
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.min(sorted.length, Math.max(1, rank)) - 1];
+    }
+}
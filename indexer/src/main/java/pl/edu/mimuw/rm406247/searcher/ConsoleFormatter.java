@@ -8,6 +8,7 @@ import org.apache.lucene.search.highlight.TokenGroup;
 import org.jline.utils.AttributedStringBuilder;
 import org.jline.utils.AttributedStyle;
 
+/// Marks matches in @p color, leaves them unstyled if @p color is negative.
 public class ConsoleFormatter implements Formatter {
 
     final int color;
@@ -18,7 +19,7 @@ public class ConsoleFormatter implements Formatter {
 
     @Override
     public String highlightTerm(String originalText, TokenGroup tokenGroup) {
-        if (tokenGroup.getTotalScore() <= 0) {
+        if (tokenGroup.getTotalScore() <= 0 || color < 0) {
             return originalText;
         }
         return new AttributedStringBuilder()
@@ -0,0 +1,58 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.searcher;
+
+import org.apache.lucene.search.uhighlight.Passage;
+import org.apache.lucene.search.uhighlight.PassageFormatter;
+import org.jline.utils.AttributedStringBuilder;
+import org.jline.utils.AttributedStyle;
+
+/** Formats passages found by the UnifiedHighlighter the same way
+ * fragments of the classic Highlighter are printed: one passage per line
+ * with matches in @p color, or unstyled if @p color is negative.
+ */
+public class ConsolePassageFormatter extends PassageFormatter {
+
+    final int color;
+
+    public ConsolePassageFormatter(int color) {
+        this.color = color;
+    }
+
+    @Override
+    public Object format(Passage[] passages, String content) {
+        StringBuilder result = new StringBuilder();
+        for (Passage passage : passages) {
+            AttributedStringBuilder line = new AttributedStringBuilder();
+            int position = passage.getStartOffset();
+            for (int i = 0; i < passage.getNumMatches(); i++) {
+                int start = passage.getMatchStarts()[i];
+                int end = passage.getMatchEnds()[i];
+                if (start < position) {
+                    // overlaps the previous match
+                    start = position;
+                }
+                if (end <= start) {
+                    continue;
+                }
+                line.append(content.substring(position, start).replace("\n", ""));
+                if (color < 0) {
+                    line.append(content.substring(start, end).replace("\n", ""));
+                }
+                else {
+                    line.style(AttributedStyle.DEFAULT.foreground(color))
+                            .append(content.substring(start, end).replace("\n", ""))
+                            .style(AttributedStyle.DEFAULT);
+                }
+                position = end;
+            }
+            line.append(content.substring(position, passage.getEndOffset()).replace("\n", ""));
+            if (result.length() > 0) {
+                result.append('\n');
+            }
+            result.append(line.toAnsi());
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,68 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.searcher;
+
+import java.util.List;
+import java.util.Locale;
+
+/// Results written as JSON, for the search server and the batch mode.
+final class Json {
+
+    private Json() {}
+
+    /// @p result as a JSON object.
+    static String result(SearchRequest request, SearchResult result) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"query\":").append(quote(request.text()))
+                .append(",\"type\":").append(quote(request.type().name().toLowerCase(Locale.ROOT)))
+                .append(",\"lang\":").append(quote(request.lang()))
+                .append(",\"total\":").append(result.totalHits())
+                .append(",\"exact\":").append(result.isExact())
+                .append(",\"tookMs\":").append(String.format(Locale.ROOT, "%.3f", result.nanos() / 1e6))
+                .append(",\"cached\":").append(result.isCached())
+                .append(",\"hits\":[");
+        for (int i = 0; i < result.hits().size(); i++) {
+            SearchResult.Hit hit = result.hits().get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"path\":").append(quote(hit.path()))
+                    .append(",\"score\":").append(hit.score());
+            List<String> fragments = hit.fragments();
+            if (fragments != null) {
+                json.append(",\"fragments\":[");
+                for (int j = 0; j < fragments.size(); j++) {
+                    if (j > 0) {
+                        json.append(',');
+                    }
+                    json.append(quote(fragments.get(j)));
+                }
+                json.append(']');
+            }
+            json.append('}');
+        }
+        json.append("],\"next\":")
+                .append(result.next() == null ? "null" : quote(SearchRequest.formatAfter(result.next())))
+                .append(",\"version\":").append(result.version())
+                .append('}');
+        return json.toString();
+    }
+
+    static String quote(String text) {
+        StringBuilder result = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                result.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                result.append(c);
+            }
+        }
+        return result.append('"').toString();
+    }
+}
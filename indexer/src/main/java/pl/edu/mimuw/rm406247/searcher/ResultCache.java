@@ -0,0 +1,124 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.searcher;
+
+import org.apache.lucene.search.Query;
+import pl.edu.mimuw.rm406247.Metrics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/** Results of recent queries, highlighted fragments included, of one version of the index.
+ * Queries are told apart by the Lucene query built from them, which holds the
+ * analyzed terms, so "River" and "river" share an entry, and by the page and the way
+ * it is presented. Looking up a result of another version of the index empties the
+ * cache, so every commit invalidates it. The least recently used results are evicted
+ * once all of them hold more than @p capacity hits together.
+ */
+class ResultCache {
+
+    private static final Metrics.Counter HITS = Metrics.counter("searcher.cacheHits");
+    private static final Metrics.Counter MISSES = Metrics.counter("searcher.cacheMisses");
+
+    static final class Key {
+        private final Query query;
+        private final int limit;
+        private final String after;
+        private final boolean details;
+        private final boolean colors;
+        private final Searcher.HighlightMode highlightMode;
+
+        Key(Query query, SearchRequest request) {
+            this.query = query;
+            this.limit = request.limit();
+            this.after = request.after() == null ? null : SearchRequest.formatAfter(request.after());
+            this.details = request.details();
+            this.colors = request.colors();
+            this.highlightMode = request.highlightMode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return query.equals(key.query) && limit == key.limit && Objects.equals(after, key.after)
+                    && details == key.details && colors == key.colors && highlightMode == key.highlightMode;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(query, limit, after, details, colors, highlightMode);
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<Key, SearchResult> results = new LinkedHashMap<>(16, 0.75f, true);
+    private long version = -1;
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /// @param capacity - maximal number of hits of all cached results, 0 disables the cache.
+    ResultCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /** Cached result of @p key computed on version @p version of the index,
+     * null if there is none.
+     */
+    synchronized SearchResult get(long version, Key key) {
+        if (capacity <= 0) {
+            return null;
+        }
+        if (version != this.version) {
+            results.clear();
+            size = 0;
+            this.version = version;
+        }
+        SearchResult result = results.get(key);
+        if (result == null) {
+            misses++;
+            MISSES.increment();
+        }
+        else {
+            hits++;
+            HITS.increment();
+        }
+        return result;
+    }
+
+    synchronized void put(long version, Key key, SearchResult result) {
+        long weight = weight(result);
+        if (version != this.version || weight > capacity) {
+            return;
+        }
+        SearchResult previous = results.put(key, result);
+        if (previous != null) {
+            size -= weight(previous);
+        }
+        size += weight;
+        Iterator<SearchResult> eldest = results.values().iterator();
+        while (size > capacity && eldest.hasNext()) {
+            size -= weight(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    private static long weight(SearchResult result) {
+        return Math.max(1, result.hits().size());
+    }
+
+    /// Hit rate of the lookups so far, null if there were none.
+    synchronized String stats() {
+        if (hits + misses == 0) {
+            return null;
+        }
+        return String.format("Result cache: %d hits, %d misses (%.1f%% hit rate), %d results cached",
+                hits, misses, 100.0 * hits / (hits + misses), results.size());
+    }
+}
@@ -0,0 +1,134 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.searcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Sends queries of the console to a running SearchServer.
+ */
+class SearchClient {
+
+    /// How long a server is given to answer a ping before the console searches the index itself.
+    private static final int PING_TIMEOUT = 500;
+
+    private final int port;
+    private final String token;
+
+    private SearchClient(int port, String token) {
+        this.port = port;
+        this.token = token;
+    }
+
+    /** Finds the server through the port file in @p indexPath, which also holds
+     * the token the server expects.
+     *
+     * @return null if no server is running.
+     */
+    static SearchClient connect(Path indexPath) {
+        Path portFile = indexPath.resolve(SearchServer.PORT_FILE);
+        if (!Files.isReadable(portFile)) {
+            return null;
+        }
+        try {
+            String[] contents = new String(Files.readAllBytes(portFile), StandardCharsets.UTF_8).trim().split(" ");
+            SearchClient client = new SearchClient(Integer.parseInt(contents[0]), contents[1]);
+            client.get("/ping", PING_TIMEOUT);
+            return client;
+        }
+        catch (IOException | RuntimeException e) {
+            return null; // left behind by a server which is gone
+        }
+    }
+
+    int port() {
+        return port;
+    }
+
+    Searcher.Page console(SearchRequest request) throws IOException {
+        HttpURLConnection connection = open("/console?" + request.toQueryString(), 0);
+        String text = read(connection);
+        String next = connection.getHeaderField("X-Next");
+        String version = connection.getHeaderField("X-Version");
+        try {
+            return new Searcher.Page(text, next == null ? null : SearchRequest.parseAfter(next),
+                    version == null ? -1 : Long.parseLong(version));
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Unexpected answer of the server: " + version);
+        }
+    }
+
+    List<String> complete(String lang, String prefix) {
+        try {
+            String body = get("/complete?lang=" + SearchRequest.encode(lang)
+                    + "&prefix=" + SearchRequest.encode(prefix), 0);
+            List<String> result = new ArrayList<>();
+            for (String line : body.split("\n")) {
+                if (!line.isEmpty()) {
+                    result.add(line);
+                }
+            }
+            return result;
+        }
+        catch (IOException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /// Number of threads the server searches one query on, after setting it to @p threads if positive.
+    int threads(int threads) throws IOException {
+        String body = get(threads > 0 ? "/threads?n=" + threads : "/threads", 0);
+        try {
+            return Integer.parseInt(body.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Unexpected answer of the server: " + body);
+        }
+    }
+
+    private String get(String path, int timeout) throws IOException {
+        return read(open(path, timeout));
+    }
+
+    private HttpURLConnection open(String path, int timeout) throws IOException {
+        URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), port, path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setRequestProperty(SearchServer.TOKEN_HEADER, token);
+        return connection;
+    }
+
+    /// Body of the response, IOException with the server's message if the request failed.
+    private static String read(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (body != null) {
+            try (InputStream in = body) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                }
+            }
+        }
+        String text = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        if (status >= 400) {
+            throw new IOException(text);
+        }
+        return text;
+    }
+}
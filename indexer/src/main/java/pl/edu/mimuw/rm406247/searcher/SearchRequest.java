@@ -0,0 +1,208 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.searcher;
+
+import org.apache.lucene.search.ScoreDoc;
+import pl.edu.mimuw.rm406247.AnalyzerRegistry;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/** One page of one query, together with the way its results are presented.
+ * Requests travel between the console and the search server as URL query strings.
+ */
+public class SearchRequest {
+
+    private final Searcher.QueryType type;
+    private final String lang;
+    private final String text;
+    private final int limit;
+    private final ScoreDoc after;
+    private final boolean details;
+    private final boolean colors;
+    private final Searcher.HighlightMode highlightMode;
+
+    /**
+     * @param text - words of the query, or the file or directory of a prefix query, which is
+     *             made absolute here, against the working directory of the console and not of
+     *             the server searching it.
+     * @param limit - maximal number of hits on the page, Integer.MAX_VALUE for all of them.
+     * @param after - last hit of the previous page, null for the first page.
+     * @throws IllegalArgumentException if the query cannot be built from @p text.
+     */
+    public SearchRequest(Searcher.QueryType type, String lang, String text, int limit, ScoreDoc after,
+                         boolean details, boolean colors, Searcher.HighlightMode highlightMode) {
+        if (type != Searcher.QueryType.PHRASE && text.contains(" ")) {
+            throw new IllegalArgumentException(type.toString() + " query should contain exactly one word.");
+        }
+        if (!AnalyzerRegistry.isRegistered(lang)) {
+            throw new IllegalArgumentException("Invalid language. ("
+                    + String.join("/", AnalyzerRegistry.languages()) + " expected)");
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Must be a number greater than zero.");
+        }
+        this.type = type;
+        this.lang = lang;
+        this.text = type == Searcher.QueryType.PREFIX ? Paths.get(text).toAbsolutePath().toString() : text;
+        this.limit = limit;
+        this.after = after;
+        this.details = details;
+        this.colors = colors;
+        this.highlightMode = highlightMode;
+    }
+
+    public Searcher.QueryType type() {
+        return type;
+    }
+
+    public String lang() {
+        return lang;
+    }
+
+    public String text() {
+        return text;
+    }
+
+    public int limit() {
+        return limit;
+    }
+
+    public ScoreDoc after() {
+        return after;
+    }
+
+    public boolean details() {
+        return details;
+    }
+
+    public boolean colors() {
+        return colors;
+    }
+
+    public Searcher.HighlightMode highlightMode() {
+        return highlightMode;
+    }
+
+    /// Same request for the page following @p after.
+    public SearchRequest after(ScoreDoc after) {
+        return new SearchRequest(type, lang, text, limit, after, details, colors, highlightMode);
+    }
+
+    /** Parses parameters of a query string:
+     * q=<text>&type=term|phrase|fuzzy|prefix&lang=en|pl&limit=<n, 0 for all>&after=<token>
+     * &details=on|off&color=on|off&highlight=offsets|analysis|compare
+     * Only q is required, the rest defaults to the defaults of the console.
+     *
+     * @throws IllegalArgumentException if any of the parameters is invalid.
+     */
+    public static SearchRequest fromQueryString(String query) {
+        Map<String, String> params = parseQueryString(query);
+        String text = params.get("q");
+        if (text == null || text.isEmpty()) {
+            throw new IllegalArgumentException("Missing query text (q).");
+        }
+        Searcher.QueryType type = Searcher.QueryType.valueOf(
+                params.getOrDefault("type", "term").toUpperCase(Locale.ROOT));
+        int limit;
+        try {
+            limit = Integer.parseInt(params.getOrDefault("limit", "0"));
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit.");
+        }
+        if (limit == 0) {
+            limit = Integer.MAX_VALUE;
+        }
+        String after = params.get("after");
+        return new SearchRequest(type,
+                params.getOrDefault("lang", "en"),
+                text,
+                limit,
+                after == null ? null : parseAfter(after),
+                isOn(params, "details"),
+                isOn(params, "color"),
+                Searcher.HighlightMode.valueOf(params.getOrDefault("highlight", "offsets").toUpperCase(Locale.ROOT)));
+    }
+
+    /// Inverse of fromQueryString().
+    public String toQueryString() {
+        StringBuilder result = new StringBuilder();
+        result.append("q=").append(encode(text))
+                .append("&type=").append(type.name().toLowerCase(Locale.ROOT))
+                .append("&lang=").append(lang)
+                .append("&limit=").append(limit == Integer.MAX_VALUE ? 0 : limit)
+                .append("&details=").append(details ? "on" : "off")
+                .append("&color=").append(colors ? "on" : "off")
+                .append("&highlight=").append(highlightMode.name().toLowerCase(Locale.ROOT));
+        if (after != null) {
+            result.append("&after=").append(formatAfter(after));
+        }
+        return result.toString();
+    }
+
+    /// Token identifying the position of @p scoreDoc in the results, "<doc>:<score>".
+    public static String formatAfter(ScoreDoc scoreDoc) {
+        return scoreDoc.doc + ":" + scoreDoc.score;
+    }
+
+    public static ScoreDoc parseAfter(String token) {
+        int colon = token.indexOf(':');
+        try {
+            return new ScoreDoc(Integer.parseInt(token.substring(0, colon)),
+                    Float.parseFloat(token.substring(colon + 1)));
+        }
+        catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid page token: " + token);
+        }
+    }
+
+    static Map<String, String> parseQueryString(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int equals = param.indexOf('=');
+            if (equals < 0) {
+                params.put(decode(param), "");
+            }
+            else {
+                params.put(decode(param.substring(0, equals)), decode(param.substring(equals + 1)));
+            }
+        }
+        return params;
+    }
+
+    private static boolean isOn(Map<String, String> params, String name) {
+        String value = params.getOrDefault(name, "off");
+        if (!value.equals("on") && !value.equals("off")) {
+            throw new IllegalArgumentException("Invalid " + name + " option. (on/off expected)");
+        }
+        return value.equals("on");
+    }
+
+    static String encode(String text) {
+        try {
+            return URLEncoder.encode(text, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e); // UTF-8 is always supported
+        }
+    }
+
+    private static String decode(String text) {
+        try {
+            return URLDecoder.decode(text, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.searcher;
+
+import org.apache.lucene.search.ScoreDoc;
+
+import java.util.List;
+
+/** One page of hits of a SearchRequest.
+ */
+public class SearchResult {
+
+    public static class Hit {
+
+        private final String path;
+        private final float score;
+        private final List<String> fragments;
+
+        Hit(String path, float score, List<String> fragments) {
+            this.path = path;
+            this.score = score;
+            this.fragments = fragments;
+        }
+
+        public String path() {
+            return path;
+        }
+
+        public float score() {
+            return score;
+        }
+
+        /// Highlighted passages of the document, null if details were not requested or there are none.
+        public List<String> fragments() {
+            return fragments;
+        }
+    }
+
+    private final long totalHits;
+    private final boolean exact;
+    private final List<Hit> hits;
+    private final ScoreDoc next;
+    private final long offsetsNanos;
+    private final long analysisNanos;
+    private final long nanos;
+    private final boolean cached;
+    private final long version;
+
+    /**
+     * @param version - version of the index searched, which the doc id of @p next belongs to.
+     */
+    SearchResult(long totalHits, boolean exact, List<Hit> hits, ScoreDoc next,
+                 long offsetsNanos, long analysisNanos, long nanos, long version) {
+        this(totalHits, exact, hits, next, offsetsNanos, analysisNanos, nanos, false, version);
+    }
+
+    private SearchResult(long totalHits, boolean exact, List<Hit> hits, ScoreDoc next,
+                         long offsetsNanos, long analysisNanos, long nanos, boolean cached, long version) {
+        this.totalHits = totalHits;
+        this.exact = exact;
+        this.hits = hits;
+        this.next = next;
+        this.offsetsNanos = offsetsNanos;
+        this.analysisNanos = analysisNanos;
+        this.nanos = nanos;
+        this.cached = cached;
+        this.version = version;
+    }
+
+    /// The same result taken from the cache in @p nanos, without highlighting times.
+    SearchResult cached(long nanos) {
+        return new SearchResult(totalHits, exact, hits, next, 0, 0, nanos, true, version);
+    }
+
+    /// Number of matching documents, a lower bound unless isExact().
+    public long totalHits() {
+        return totalHits;
+    }
+
+    public boolean isExact() {
+        return exact;
+    }
+
+    public List<Hit> hits() {
+        return hits;
+    }
+
+    /// Last hit of this page, null if there are no more pages.
+    public ScoreDoc next() {
+        return next;
+    }
+
+    /// Time spent highlighting from offsets, 0 if this was not done.
+    public long offsetsNanos() {
+        return offsetsNanos;
+    }
+
+    /// Time spent highlighting by analysis, 0 if this was not done.
+    public long analysisNanos() {
+        return analysisNanos;
+    }
+
+    /// Time the whole search took.
+    public long nanos() {
+        return nanos;
+    }
+
+    /// Whether the result was taken from the cache of recent results.
+    public boolean isCached() {
+        return cached;
+    }
+
+    /** Version of the index the result comes from. next() only points into that version:
+     * doc ids change when the index is reopened, so a page following next() is only
+     * right if it is searched on the same version.
+     */
+    public long version() {
+        return version;
+    }
+}
@@ -0,0 +1,174 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.searcher;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import pl.edu.mimuw.rm406247.IndexerUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Answers queries over HTTP on the loopback interface, so that the analyzer,
+ * the index reader and the completion suggesters stay loaded between queries.
+ * The port and a random token are written to the searcher.port file in the index
+ * directory, readable by its owner only, which is where the console finds the server.
+ * Every request has to carry the token in the TOKEN_HEADER header, others are
+ * refused with 403, as documents of the index are shown to whoever asks.
+ *
+ * GET /search?q=<text>&... - results as JSON, parameters as in SearchRequest.fromQueryString(),
+ * GET /console?q=<text>&... - results as printed by the console, the next page token in the X-Next header
+ *     and the version of the index it belongs to in the X-Version header,
+ * GET /complete?lang=<lang>&prefix=<word> - completions, one per line,
+ * GET /threads[?n=<n>] - number of threads searching one query, after setting it to n
+ *     (at most SearchService.MAX_THREADS) if given,
+ * GET /ping
+ */
+class SearchServer implements AutoCloseable {
+
+    static final String PORT_FILE = "searcher.port";
+    static final String TOKEN_HEADER = "X-Token";
+
+    private interface Handler {
+        void handle(HttpExchange exchange, String query) throws IOException;
+    }
+
+    private final SearchService service;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Path portFile;
+    private final String token = IndexerUtils.randomToken();
+
+    /**
+     * @param port - port to listen on, 0 for any free one.
+     */
+    SearchServer(SearchService service, Path indexPath, int port, int threads) throws IOException {
+        this.service = service;
+        this.portFile = indexPath.resolve(PORT_FILE);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        AtomicInteger workers = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "search-server-" + workers.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/search", exchange -> handle(exchange, this::search));
+        server.createContext("/console", exchange -> handle(exchange, this::console));
+        server.createContext("/complete", exchange -> handle(exchange, this::complete));
+        server.createContext("/threads", exchange -> handle(exchange, this::threads));
+        server.createContext("/ping", exchange -> handle(exchange, (ping, query) ->
+                respond(ping, 200, "text/plain", "ok")));
+    }
+
+    void start() throws IOException {
+        server.start();
+        IndexerUtils.writePrivate(portFile, port() + " " + token);
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    private void search(HttpExchange exchange, String query) throws IOException {
+        SearchRequest request = SearchRequest.fromQueryString(query);
+        respond(exchange, 200, "application/json", Json.result(request, service.search(request)));
+    }
+
+    private void console(HttpExchange exchange, String query) throws IOException {
+        SearchRequest request = SearchRequest.fromQueryString(query);
+        SearchResult result = service.search(request);
+        if (result.next() != null) {
+            exchange.getResponseHeaders().set("X-Next", SearchRequest.formatAfter(result.next()));
+        }
+        exchange.getResponseHeaders().set("X-Version", Long.toString(result.version()));
+        respond(exchange, 200, "text/plain", Searcher.render(request, result));
+    }
+
+    private void complete(HttpExchange exchange, String query) throws IOException {
+        Map<String, String> params = SearchRequest.parseQueryString(query);
+        StringBuilder result = new StringBuilder();
+        for (String term : service.complete(params.getOrDefault("lang", "en"), params.getOrDefault("prefix", ""))) {
+            result.append(term).append('\n');
+        }
+        respond(exchange, 200, "text/plain", result.toString());
+    }
+
+    private void threads(HttpExchange exchange, String query) throws IOException {
+        String threads = SearchRequest.parseQueryString(query).get("n");
+        if (threads != null) {
+            try {
+                service.setThreads(Integer.parseInt(threads));
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number of threads: " + threads);
+            }
+        }
+        respond(exchange, 200, "text/plain", Integer.toString(service.threads()));
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        try {
+            if (!authorized(exchange)) {
+                respond(exchange, 403, "text/plain", "Missing or invalid token.");
+                return;
+            }
+            if (!exchange.getRequestMethod().equals("GET")) {
+                respond(exchange, 405, "text/plain", "Only GET is supported.");
+                return;
+            }
+            handler.handle(exchange, exchange.getRequestURI().getRawQuery());
+        }
+        catch (IllegalArgumentException e) {
+            respond(exchange, 400, "text/plain", e.getMessage());
+        }
+        catch (IOException | RuntimeException e) {
+            synchronized (System.err) {
+                System.err.println("Error answering " + exchange.getRequestURI());
+                System.err.println(e.toString());
+            }
+            respond(exchange, 500, "text/plain", e.toString());
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private boolean authorized(HttpExchange exchange) {
+        String given = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+        return given != null && MessageDigest.isEqual(
+                given.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void respond(HttpExchange exchange, int status, String type, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", type + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            Files.deleteIfExists(portFile);
+        }
+        catch (IOException e) {
+            // clients notice that nothing listens on the port
+        }
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,450 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.searcher;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.highlight.*;
+import org.apache.lucene.search.uhighlight.LengthGoalBreakIterator;
+import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
+import org.jline.utils.AttributedStyle;
+import pl.edu.mimuw.rm406247.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.BreakIterator;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Answers queries against the index. Holds everything that is expensive
+ * to set up: the analyzer, the index reader (reopened only when the index
+ * changes), the completion suggesters and the results of recent queries.
+ * Safe to use from many threads.
+ *
+ * The number of hits kept in the result cache can be set with
+ * -Dsearcher.cache.hits=<n> (0 turns the cache off), the number of threads
+ * searching one query with -Dsearcher.threads=<n> (default: number of cores,
+ * at most MAX_THREADS) or setThreads().
+ */
+public class SearchService implements AutoCloseable {
+
+    /// Most threads searching one query, more would only wait for each other.
+    static final int MAX_THREADS = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+    /// Hits are counted exactly up to this number.
+    private static final int TOTAL_HITS_THRESHOLD = 1000;
+
+    private static final Metrics.Timer REQUEST = Metrics.timer("searcher.request");
+    private static final Metrics.Timer PARSE = Metrics.timer("searcher.parseQuery");
+    private static final Metrics.Timer COLLECT = Metrics.timer("searcher.search");
+    private static final Metrics.Timer OFFSETS = Metrics.timer("searcher.highlightOffsets");
+    private static final Metrics.Timer ANALYSIS = Metrics.timer("searcher.highlightAnalysis");
+
+    private final Analyzer analyzer;
+    private final ShardedSearcherManager searcherManager;
+    /// Searches the shards or the segment slices of a query in parallel, resized by setThreads().
+    private final ThreadPoolExecutor searchExecutor;
+    private volatile int threads;
+    private final TermCompleter completer;
+    private final ResultCache cache = new ResultCache(Integer.getInteger("searcher.cache.hits", 10000));
+
+    /**
+     * @throws org.apache.lucene.index.IndexNotFoundException if there is no index at @p indexPath.
+     */
+    public SearchService(Path indexPath, Analyzer analyzer) throws IOException {
+        this.analyzer = analyzer;
+        this.searcherManager = new ShardedSearcherManager(indexPath);
+        AtomicInteger workers = new AtomicInteger();
+        int threads = Math.max(1, Math.min(MAX_THREADS,
+                Integer.getInteger("searcher.threads", Runtime.getRuntime().availableProcessors())));
+        this.searchExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "search-" + workers.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.threads = threads;
+        this.completer = new TermCompleter(indexPath, searcherManager);
+    }
+
+    public SearchResult search(SearchRequest request) throws IOException {
+        long start = System.nanoTime();
+        try {
+            searcherManager.maybeRefresh();
+        }
+        catch (IOException e) {
+            System.err.println("Could not reopen index, using the previous version.");
+            System.err.println(e.getMessage());
+        }
+        completer.prepare(request.lang());
+        ShardedSearcherManager.Snapshot snapshot = searcherManager.acquire(threads > 1 ? searchExecutor : null);
+        try {
+            long parseStart = System.nanoTime();
+            boolean legacyPaths = request.type() == Searcher.QueryType.PREFIX
+                    && hasLegacyPaths(snapshot.searcher().getIndexReader());
+            Query query = buildQuery(request.type(), request.lang(), request.text(), analyzer, legacyPaths);
+            PARSE.recordSince(parseStart);
+            // comparing highlighting asks for the time it takes, which a cached result does not have
+            boolean cacheable = request.highlightMode() != Searcher.HighlightMode.COMPARE;
+            long version = snapshot.version();
+            ResultCache.Key key = cacheable ? new ResultCache.Key(query, request) : null;
+            SearchResult result = cacheable ? cache.get(version, key) : null;
+            if (result != null) {
+                result = result.cached(System.nanoTime() - start);
+            }
+            else {
+                result = search(snapshot, query, request, start);
+                if (cacheable) {
+                    cache.put(version, key, result);
+                }
+            }
+            REQUEST.record(result.nanos());
+            return result;
+        }
+        finally {
+            searcherManager.release(snapshot);
+        }
+    }
+
+    /// Number of threads searching one query.
+    public int threads() {
+        return threads;
+    }
+
+    /** Searches every following query on @p threads threads, 1 searches it
+     * on the calling thread only. Queries being searched are not affected.
+     *
+     * @throws IllegalArgumentException if @p threads is not between 1 and MAX_THREADS.
+     */
+    public synchronized void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive.");
+        }
+        if (threads > MAX_THREADS) {
+            throw new IllegalArgumentException("At most " + MAX_THREADS + " threads can search one query.");
+        }
+        // the core size may never exceed the maximal one
+        if (threads > searchExecutor.getMaximumPoolSize()) {
+            searchExecutor.setMaximumPoolSize(threads);
+            searchExecutor.setCorePoolSize(threads);
+        }
+        else {
+            searchExecutor.setCorePoolSize(threads);
+            searchExecutor.setMaximumPoolSize(threads);
+        }
+        this.threads = threads;
+    }
+
+    /// Starts loading the completions of @p lang, so that they are ready when asked for.
+    public void prepare(String lang) {
+        completer.prepare(lang);
+    }
+
+    /// Terms of documents in @p lang starting with @p prefix.
+    public List<String> complete(String lang, String prefix) {
+        return completer.complete(lang, prefix);
+    }
+
+    /// Whether some documents of @p reader were indexed before the ancestor field existed.
+    static boolean hasLegacyPaths(IndexReader reader) throws IOException {
+        return reader.getDocCount("ancestor") < reader.maxDoc();
+    }
+
+    /**
+     * @param legacyPaths - whether a prefix query has to match documents without ancestor terms,
+     *                    see hasLegacyPaths().
+     */
+    public static Query buildQuery(Searcher.QueryType queryType, String lang, String command, Analyzer analyzer,
+                                   boolean legacyPaths) throws IOException {
+        Query query1 = null, query2 = null;
+        ArrayList<String> bodyTerms = analyze("body-" + lang, command, analyzer);
+        ArrayList<String> titleTerms = analyze("title-" + lang, command, analyzer);
+        String body = (bodyTerms.size() > 0) ? bodyTerms.get(0) : command.toLowerCase();
+        String title = (titleTerms.size() > 0) ? titleTerms.get(0) : command.toLowerCase();
+
+        if (queryType == Searcher.QueryType.TERM) {
+            query1 = new TermQuery(new Term("body-" + lang, body));
+            query2 = new TermQuery(new Term("title-" + lang, title));
+        } else if (queryType == Searcher.QueryType.PHRASE) {
+            query1 = new PhraseQuery("body-" + lang,
+                    bodyTerms.toArray(new String[bodyTerms.size()]));
+            query2 = new PhraseQuery("title-" + lang,
+                    titleTerms.toArray(new String[titleTerms.size()]));
+        } else if (queryType == Searcher.QueryType.FUZZY) {
+            query1 = new FuzzyQuery(new Term("body-" + lang, body));
+            query2 = new FuzzyQuery(new Term("title-" + lang, title));
+        }
+
+        if (queryType == Searcher.QueryType.PREFIX) { // additional functionality
+            // the file itself or anything in the directory, matched by exact terms unless
+            // the index has documents without ancestor terms, as the indexer does (the path
+            // is made absolute by SearchRequest)
+            Query below;
+            if (legacyPaths) {
+                String prefix = command.endsWith(File.separator) ? command : command + File.separator;
+                below = new PrefixQuery(new Term("path", prefix));
+            }
+            else {
+                below = new TermQuery(new Term("ancestor", command));
+            }
+            return new BooleanQuery.Builder()
+                    .add(new TermQuery(new Term("path", command)), BooleanClause.Occur.SHOULD)
+                    .add(below, BooleanClause.Occur.SHOULD)
+                    .build();
+        }
+        return new BooleanQuery.Builder()
+                .add(query1, BooleanClause.Occur.SHOULD)
+                .add(query2, BooleanClause.Occur.SHOULD)
+                .build();
+    }
+
+    /** Collects at most limit hits following the request's last hit.
+     * Hits are counted exactly only up to TOTAL_HITS_THRESHOLD, unless
+     * the limit is off, in which case all of them are collected anyway.
+     */
+    private SearchResult search(ShardedSearcherManager.Snapshot snapshot, Query query, SearchRequest request,
+                                long start) throws IOException {
+        IndexSearcher indexSearcher = snapshot.searcher();
+        int limit = request.limit();
+        String lang = request.lang();
+        int numHits = limit;
+        int threshold = Math.max(limit, TOTAL_HITS_THRESHOLD);
+        if (limit == Integer.MAX_VALUE) {
+            numHits = indexSearcher.count(query);
+            threshold = Integer.MAX_VALUE;
+        }
+        // one hit more than is shown tells whether there is a next page
+        boolean paged = limit != Integer.MAX_VALUE;
+        long searchStart = System.nanoTime();
+        TopDocs topDocs = collect(snapshot, query, paged ? numHits + 1 : Math.max(1, numHits), request.after(),
+                paged ? Math.max(threshold, numHits + 1) : threshold);
+        COLLECT.recordSince(searchStart);
+        ScoreDoc next = null;
+        if (paged && topDocs.scoreDocs.length > numHits) {
+            next = topDocs.scoreDocs[numHits - 1];
+            topDocs = new TopDocs(topDocs.totalHits, Arrays.copyOf(topDocs.scoreDocs, numHits));
+        }
+
+        String[] details = null;
+        long offsetsNanos = 0;
+        long analysisNanos = 0;
+        if (request.details()) {
+            int color = request.colors() ? AttributedStyle.RED : -1;
+            if (request.highlightMode() != Searcher.HighlightMode.ANALYSIS) {
+                long highlightStart = System.nanoTime();
+                details = highlightFromOffsets(indexSearcher, query, topDocs, lang, color);
+                offsetsNanos = System.nanoTime() - highlightStart;
+                OFFSETS.record(offsetsNanos);
+            }
+            if (request.highlightMode() != Searcher.HighlightMode.OFFSETS) {
+                long highlightStart = System.nanoTime();
+                String[] analyzed = highlightByAnalysis(indexSearcher, query, topDocs, lang, color);
+                analysisNanos = System.nanoTime() - highlightStart;
+                ANALYSIS.record(analysisNanos);
+                if (details == null) {
+                    details = analyzed;
+                }
+            }
+        }
+
+        List<SearchResult.Hit> hits = new ArrayList<>();
+        for (int i = 0; i < topDocs.scoreDocs.length; i++) {
+            Document doc = indexSearcher.doc(topDocs.scoreDocs[i].doc, Collections.singleton("path"));
+            List<String> fragments = null;
+            if (details != null && details[i] != null && !details[i].isEmpty()) {
+                fragments = Arrays.asList(details[i].split("\n"));
+            }
+            hits.add(new SearchResult.Hit(doc.get("path"), topDocs.scoreDocs[i].score, fragments));
+        }
+        return new SearchResult(topDocs.totalHits.value,
+                topDocs.totalHits.relation == TotalHits.Relation.EQUAL_TO,
+                hits, next, offsetsNanos, analysisNanos, System.nanoTime() - start, snapshot.version());
+    }
+
+    /** Searches every index of @p snapshot, each on a thread of its own unless one thread
+     * searches the query, and merges their best hits.
+     * Doc ids of the result are those of the union of the indexes. Shards score with the
+     * statistics of the union, so hits are ordered as if the indexes were one: by score,
+     * then by doc id. The page position @p after is translated for every shard so that
+     * hits with the score of @p after are skipped exactly where the union would skip them.
+     * A single index searches its slices in parallel itself, if the snapshot was given an executor.
+     */
+    private TopDocs collect(ShardedSearcherManager.Snapshot snapshot, Query query, int numHits, ScoreDoc after,
+                            int threshold) throws IOException {
+        List<IndexSearcher> shards = snapshot.shards();
+        if (shards.size() == 1) {
+            return shards.get(0).search(query, collectorManager(numHits, after, threshold));
+        }
+        List<TopDocs> shardHits = new ArrayList<>();
+        if (threads == 1) {
+            for (int i = 0; i < shards.size(); i++) {
+                shardHits.add(collect(shards.get(i), snapshot.docBase(i), query, numHits, after, threshold));
+            }
+            return merge(numHits, shardHits);
+        }
+        List<Future<TopDocs>> futures = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            IndexSearcher shard = shards.get(i);
+            int docBase = snapshot.docBase(i);
+            futures.add(searchExecutor.submit(() -> collect(shard, docBase, query, numHits, after, threshold)));
+        }
+        try {
+            for (Future<TopDocs> future : futures) {
+                shardHits.add(future.get());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while searching shards.", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        return merge(numHits, shardHits);
+    }
+
+    /** Best hits of one shard starting at @p docBase in the union, with doc ids of the union.
+     * The page position @p after, given in the union, is clamped to the shard.
+     */
+    private static TopDocs collect(IndexSearcher shard, int docBase, Query query, int numHits, ScoreDoc after,
+                                   int threshold) throws IOException {
+        ScoreDoc shardAfter = null;
+        if (after != null) {
+            int maxDoc = shard.getIndexReader().maxDoc();
+            shardAfter = new ScoreDoc(Math.max(-1, Math.min(maxDoc, after.doc - docBase)), after.score);
+        }
+        TopScoreDocCollector collector = TopScoreDocCollector.create(numHits, shardAfter, threshold);
+        shard.search(query, collector);
+        TopDocs topDocs = collector.topDocs();
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            scoreDoc.doc += docBase;
+        }
+        return topDocs;
+    }
+
+    /// Collects the hits of every slice of a searcher separately, then merges them.
+    private static CollectorManager<TopScoreDocCollector, TopDocs> collectorManager(int numHits, ScoreDoc after,
+                                                                                    int threshold) {
+        return new CollectorManager<TopScoreDocCollector, TopDocs>() {
+            @Override
+            public TopScoreDocCollector newCollector() {
+                return TopScoreDocCollector.create(numHits, after, threshold);
+            }
+
+            @Override
+            public TopDocs reduce(Collection<TopScoreDocCollector> collectors) {
+                List<TopDocs> parts = new ArrayList<>();
+                for (TopScoreDocCollector collector : collectors) {
+                    parts.add(collector.topDocs());
+                }
+                return merge(numHits, parts);
+            }
+        };
+    }
+
+    /** The best @p numHits hits of @p parts, whose doc ids are already those of the whole index.
+     * Ties are broken by doc id, as a single collector would, whatever the parts hold,
+     * so that paging with the last hit skips exactly the hits already shown.
+     */
+    static TopDocs merge(int numHits, List<TopDocs> parts) {
+        List<ScoreDoc> scoreDocs = new ArrayList<>();
+        long totalHits = 0;
+        TotalHits.Relation relation = TotalHits.Relation.EQUAL_TO;
+        for (TopDocs part : parts) {
+            scoreDocs.addAll(Arrays.asList(part.scoreDocs));
+            totalHits += part.totalHits.value;
+            if (part.totalHits.relation != TotalHits.Relation.EQUAL_TO) {
+                relation = TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO;
+            }
+        }
+        scoreDocs.sort((a, b) -> a.score != b.score ? Float.compare(b.score, a.score) : Integer.compare(a.doc, b.doc));
+        if (scoreDocs.size() > numHits) {
+            scoreDocs = scoreDocs.subList(0, numHits);
+        }
+        return new TopDocs(new TotalHits(totalHits, relation), scoreDocs.toArray(new ScoreDoc[0]));
+    }
+
+    /** Finds the best fragments using offsets stored in the postings,
+     * the text is only cut at those positions, not analyzed again.
+     * Documents indexed without offsets fall back to analysis.
+     * Fragments of one document are separated by newlines.
+     */
+    private String[] highlightFromOffsets(IndexSearcher indexSearcher, Query query, TopDocs topDocs,
+                                          String lang, int color) throws IOException {
+        UnifiedHighlighter highlighter = new UnifiedHighlighter(indexSearcher, analyzer);
+        highlighter.setFormatter(new ConsolePassageFormatter(color));
+        highlighter.setBreakIterator(() ->
+                LengthGoalBreakIterator.createClosestToLength(BreakIterator.getWordInstance(Locale.ROOT), 70));
+        highlighter.setMaxLength(Integer.MAX_VALUE - 1);
+        highlighter.setMaxNoHighlightPassages(0);
+        return highlighter.highlight("body-" + lang, query, topDocs, 10);
+    }
+
+    /// Finds the best fragments by analyzing the whole stored text again.
+    private String[] highlightByAnalysis(IndexSearcher indexSearcher, Query query, TopDocs topDocs,
+                                         String lang, int color) throws IOException {
+        QueryScorer scorer = new QueryScorer(query);
+        Highlighter highlighter = new Highlighter(new ConsoleFormatter(color), scorer);
+        Fragmenter fragmenter = new SimpleSpanFragmenter(scorer, 70);
+        highlighter.setTextFragmenter(fragmenter);
+        String[] details = new String[topDocs.scoreDocs.length];
+        for (int i = 0; i < details.length; i++) {
+            String text = indexSearcher.doc(topDocs.scoreDocs[i].doc).get("body-" + lang);
+            if (text == null) {
+                continue;
+            }
+            StringJoiner result = new StringJoiner("\n");
+            try {
+                String[] fragments = highlighter.getBestFragments(analyzer,
+                        "body-" + lang,
+                        text,
+                        10);
+                for (String fragment : fragments) {
+                    result.add(fragment.replace("\n", ""));
+                }
+            }
+            catch (Exception e) {
+                result.add("Error fetching context.");
+                result.add(String.valueOf(e.getMessage()));
+            }
+            details[i] = result.toString();
+        }
+        return details;
+    }
+
+    public static ArrayList<String> analyze(String fieldName, String text, Analyzer analyzer) throws IOException{
+        ArrayList<String> result = new ArrayList<String>();
+        TokenStream tokenStream = analyzer.tokenStream(fieldName, text);
+        CharTermAttribute attr = tokenStream.addAttribute(CharTermAttribute.class);
+        tokenStream.reset();
+        while(tokenStream.incrementToken()) {
+            result.add(attr.toString());
+        }
+        tokenStream.close();
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        String stats = cache.stats();
+        if (stats != null) {
+            System.err.println(stats);
+        }
+        searchExecutor.shutdownNow();
+        searcherManager.close();
+    }
+}
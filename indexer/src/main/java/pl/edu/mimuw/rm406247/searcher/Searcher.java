@@ -7,31 +7,34 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.*;
+import org.apache.lucene.index.IndexNotFoundException;
 import org.apache.lucene.search.*;
-import org.apache.lucene.search.highlight.*;
-import org.apache.lucene.store.FSDirectory;
 
-import org.jline.reader.EndOfFileException;
-import org.jline.reader.LineReader;
-import org.jline.reader.LineReaderBuilder;
-import org.jline.reader.UserInterruptException;
+import org.jline.reader.*;
 import org.jline.terminal.Terminal;
 import org.jline.terminal.TerminalBuilder;
 import org.jline.utils.AttributedStringBuilder;
 import org.jline.utils.AttributedStyle;
+import pl.edu.mimuw.rm406247.AnalyzerRegistry;
 import pl.edu.mimuw.rm406247.IndexerUtils;
+import pl.edu.mimuw.rm406247.Metrics;
 
 public class Searcher {
 
     private Searcher() {}
 
-    private enum QueryType {
+    /// Source of match positions used for %details.
+    public enum HighlightMode {
+        OFFSETS,  // offsets recorded in the postings at index time
+        ANALYSIS, // re-analysis of the stored text
+        COMPARE   // both, reporting the time each of them took
+    }
+
+    public enum QueryType {
         TERM ("Term"),
         PHRASE ("Phrase"),
         FUZZY ("Fuzzy"),
@@ -49,6 +52,65 @@ public class Searcher {
         }
     }
 
+    /// Page of results as printed by the console.
+    static class Page {
+        final String text;
+        final ScoreDoc next; // last hit of the page, null if there are no more pages
+        final long version; // of the index the page comes from, see SearchResult.version()
+
+        Page(String text, ScoreDoc next, long version) {
+            this.text = text;
+            this.next = next;
+            this.version = version;
+        }
+    }
+
+    /// Where the console gets its results from: a running search server or the index itself.
+    private interface Backend extends AutoCloseable {
+        Page search(SearchRequest request) throws IOException;
+
+        List<String> complete(String lang, String prefix);
+
+        default void prepare(String lang) {}
+
+        /// Number of threads searching one query, after setting it to @p threads if positive.
+        int threads(int threads) throws IOException;
+
+        @Override
+        default void close() throws IOException {}
+    }
+
+    /// Completes words of queries with terms of the index in the current language.
+    private static class QueryCompleter implements Completer {
+
+        private final Backend backend;
+        private volatile String lang = "en";
+
+        QueryCompleter(Backend backend) {
+            this.backend = backend;
+        }
+
+        void setLanguage(String lang) {
+            this.lang = lang;
+            backend.prepare(lang);
+        }
+
+        @Override
+        public void complete(LineReader reader, ParsedLine line, List<Candidate> candidates) {
+            String word = line.word();
+            if (line.line().startsWith("%") || word.isEmpty()) {
+                return;
+            }
+            for (String term : backend.complete(lang, word)) {
+                candidates.add(new Candidate(term));
+            }
+        }
+    }
+
+    /** Starts the console, the search server with
+     * --server [port] (any free port by default), or runs queries
+     * without the console with --batch [file] [--threads n].
+     */
     public static void main(String[] args) {
         Path indexPath = IndexerUtils.indexPath();
 
@@ -57,31 +119,55 @@ public class Searcher {
                     + indexPath
                     + " does not exist or the application does not have valid permissions.");
         }
+        Metrics.startLog();
+
+        if (args.length > 0 && args[0].equals("--server")) {
+            int port = 0;
+            if (args.length > 1) {
+                try {
+                    port = Integer.parseInt(args[1]);
+                }
+                catch (NumberFormatException e) {
+                    System.err.println("Invalid port: " + args[1]);
+                    System.exit(1);
+                }
+            }
+            serve(indexPath, port);
+            System.exit(0);
+        }
+
+        if (args.length > 0 && args[0].equals("--batch")) {
+            System.exit(BatchSearch.run(indexPath, Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        Backend backend = openBackend(indexPath);
+        if (backend == null) {
+            System.exit(1);
+            return; // to ignore uninitialized warnings.
+        }
 
         String lang = "en";
         int limit = Integer.MAX_VALUE;
         boolean showDetails = false;
         boolean showColors = false;
+        HighlightMode highlightMode = HighlightMode.OFFSETS;
         QueryType queryType = QueryType.TERM;
-        Analyzer analyzer;
-        try {
-             analyzer = IndexerUtils.defaultAnalyzer();
-        }
-        catch (IOException e) {
-            System.err.println("Fatal error creating analyzer.");
-            System.err.println(e.getMessage());
-            System.exit(1);
-            return; // to ignore uninitialized warnings.
-        }
-        IndexSearcher indexSearcher;
+        // paging state: pageStarts[i] is the last hit before page i, null if there is no page i,
+        // all of them doc ids of index version pageVersion
+        SearchRequest lastRequest = null;
+        ArrayList<ScoreDoc> pageStarts = new ArrayList<>();
+        long pageVersion = -1;
+        int page = 0;
 
         try (Terminal terminal = TerminalBuilder.builder()
                 .jna(false)
                 .jansi(true)
                 .build()) {
+            QueryCompleter completer = new QueryCompleter(backend);
+            completer.setLanguage(lang);
             LineReader lineReader = LineReaderBuilder.builder()
                     .terminal(terminal)
-                    .completer(new TermCompleter(indexPath, analyzer))
+                    .completer(completer)
                     .build();
 
             while (true) {
@@ -111,11 +197,13 @@ public class Searcher {
                                 terminal.writer().println("Invalid number of arguments.");
                                 continue;
                             }
-                            if (!(commandArgs[1].equals("pl") || commandArgs[1].equals("en"))) {
-                                terminal.writer().println("Invalid language. (en/pl expected)");
+                            if (!AnalyzerRegistry.isRegistered(commandArgs[1])) {
+                                terminal.writer().println("Invalid language. ("
+                                        + String.join("/", AnalyzerRegistry.languages()) + " expected)");
                                 continue;
                             }
                             lang = commandArgs[1];
+                            completer.setLanguage(lang);
                         }
                         else if (commandArgs[0].equals("%color") || commandArgs[0].equals("%details")) {
                             if (commandArgs.length != 2) {
@@ -147,105 +235,122 @@ public class Searcher {
                             catch (NumberFormatException e) {
                                 terminal.writer().println("Must be a number greater than zero.");
                             }
-                            if (limit == 0) {
+                            if (limit <= 0) {
                                 limit = Integer.MAX_VALUE;
                             }
                         }
-                        else {
-                            terminal.writer().println("Invalid command.");
-                        }
-                    }
-                    else {
-                        if (queryType != QueryType.PHRASE && command.contains(" ")) {
-                            terminal.writer()
-                                    .println(queryType.toString() + " query should contain exactly one word.");
-                            continue;
+                        else if (commandArgs[0].equals("%highlight")) {
+                            if (commandArgs.length != 2) {
+                                terminal.writer().println("Invalid number of arguments.");
+                                continue;
+                            }
+                            try {
+                                highlightMode = HighlightMode.valueOf(commandArgs[1].toUpperCase());
+                            }
+                            catch (IllegalArgumentException e) {
+                                terminal.writer().println("Invalid highlight option. (offsets/analysis/compare expected)");
+                            }
                         }
-                        try (FSDirectory indexDir = FSDirectory.open(indexPath)) {
-                            try (IndexReader indexReader = DirectoryReader.open(indexDir)) {
-                                indexSearcher = new IndexSearcher(indexReader);
-                                Query query;
-                                Query query1 = null, query2 = null;
-                                ArrayList<String> bodyTerms = analyze("body-" + lang, command, analyzer);
-                                ArrayList<String> titleTerms = analyze("title-" + lang, command, analyzer);
-                                String body = (bodyTerms.size() > 0) ? bodyTerms.get(0) : command.toLowerCase();
-                                String title = (titleTerms.size() > 0) ? titleTerms.get(0) : command.toLowerCase();
-
-                                if (queryType == QueryType.TERM) {
-                                    query1 = new TermQuery(new Term("body-" + lang, body));
-                                    query2 = new TermQuery(new Term("title-" + lang, title));
-                                } else if (queryType == QueryType.PHRASE) {
-                                    query1 = new PhraseQuery("body-" + lang,
-                                            bodyTerms.toArray(new String[bodyTerms.size()]));
-                                    query2 = new PhraseQuery("title-" + lang,
-                                            titleTerms.toArray(new String[titleTerms.size()]));
-                                } else if (queryType == QueryType.FUZZY) {
-                                    query1 = new FuzzyQuery(new Term("body-" + lang, body));
-                                    query2 = new FuzzyQuery(new Term("title-" + lang, title));
+                        else if (commandArgs[0].equals("%threads")) {
+                            if (commandArgs.length > 2) {
+                                terminal.writer().println("Invalid number of arguments.");
+                                continue;
+                            }
+                            int threads = 0;
+                            if (commandArgs.length == 2) {
+                                try {
+                                    threads = Integer.parseInt(commandArgs[1]);
                                 }
-
-                                if (queryType == QueryType.PREFIX) { // additional functionality
-                                    query = new PrefixQuery(new Term("path", command));
-                                } else {
-                                    query = new BooleanQuery.Builder()
-                                            .add(query1, BooleanClause.Occur.SHOULD)
-                                            .add(query2, BooleanClause.Occur.SHOULD)
-                                            .build();
+                                catch (NumberFormatException e) {
+                                    threads = -1;
                                 }
-
-                                TopDocs topDocs = indexSearcher.search(query, Integer.MAX_VALUE);
-                                Formatter formatter;
-                                if (showColors) {
-                                    formatter = new ConsoleFormatter(AttributedStyle.RED);
-                                } else {
-                                    formatter = new ConsoleFormatter(AttributedStyle.WHITE);
+                                if (threads <= 0) {
+                                    terminal.writer().println("Must be a number greater than zero.");
+                                    continue;
+                                }
+                            }
+                            try {
+                                terminal.writer().println("Searching every query on "
+                                        + backend.threads(threads) + " threads.");
+                            }
+                            catch (IOException | IllegalArgumentException e) {
+                                terminal.writer().println("Could not change the number of threads.");
+                                terminal.writer().println(e.getMessage());
+                            }
+                        }
+                        else if (commandArgs[0].equals("%next") || commandArgs[0].equals("%prev")) {
+                            if (commandArgs.length != 1) {
+                                terminal.writer().println("Invalid number of arguments.");
+                                continue;
+                            }
+                            if (lastRequest == null) {
+                                terminal.writer().println("No previous query.");
+                                continue;
+                            }
+                            int newPage = commandArgs[0].equals("%next") ? page + 1 : page - 1;
+                            if (newPage < 0) {
+                                terminal.writer().println("Already on the first page.");
+                                continue;
+                            }
+                            if (pageStarts.get(newPage) == null && newPage > 0) {
+                                terminal.writer().println("No more results.");
+                                continue;
+                            }
+                            try {
+                                SearchRequest request = new SearchRequest(lastRequest.type(), lastRequest.lang(),
+                                        lastRequest.text(), limit, pageStarts.get(newPage),
+                                        showDetails, showColors, highlightMode);
+                                Page result = backend.search(request);
+                                if (result.version != pageVersion) {
+                                    // the index was reopened, the stored page starts are doc ids of an older version
+                                    result = newPage == 0 ? result : backend.search(request.after(null));
+                                    pageStarts.clear();
+                                    pageStarts.add(null);
+                                    pageVersion = result.version;
+                                    newPage = 0;
+                                    terminal.writer().println("The index has changed, back to the first page.");
+                                }
+                                page = newPage;
+                                terminal.writer().println("Page " + (page + 1) + ":");
+                                terminal.writer().print(result.text);
+                                if (pageStarts.size() == page + 1) {
+                                    pageStarts.add(result.next);
                                 }
-                                QueryScorer scorer = new QueryScorer(query);
-                                Highlighter highlighter = new Highlighter(formatter, scorer);
-                                Fragmenter fragmenter = new SimpleSpanFragmenter(scorer, 70);
-                                highlighter.setTextFragmenter(fragmenter);
-                                Integer length = topDocs.scoreDocs.length;
-                                terminal.writer().println(new AttributedStringBuilder()
-                                        .append("Files count: ")
-                                        .style(AttributedStyle.DEFAULT.bold())
-                                        .append(length.toString())
-                                        .toAnsi());
-                                for (int i = 0; i < Math.min(limit, length); i++) {
-                                    int docId = topDocs.scoreDocs[i].doc;
-                                    Document doc = indexSearcher.doc(docId);
-                                    terminal.writer().println(new AttributedStringBuilder()
-                                            .style(AttributedStyle.DEFAULT.bold())
-                                            .append(doc.getField("path").stringValue() + ":")
-                                            .toAnsi());
-                                    if (showDetails) {
-                                        String text = doc.get("body-" + lang);
-                                        try {
-                                            String[] fragments = highlighter.getBestFragments(analyzer,
-                                                    "body-" + lang,
-                                                    text,
-                                                    10);
-                                            for (String fragment : fragments) {
-                                                terminal.writer().println(fragment.replace("\n", ""));
-                                                terminal.writer().println(new AttributedStringBuilder()
-                                                        .style(AttributedStyle.DEFAULT.faint())
-                                                        .append(" ...")
-                                                        .toAnsi());
-                                            }
-                                        }
-                                        catch (Exception e) {
-                                            terminal.writer().println("Error fetching context.");
-                                            terminal.writer().println(e.getMessage());
-                                        }
-                                    }
+                                else {
+                                    pageStarts.set(page + 1, result.next);
                                 }
                             }
                             catch (IOException e) {
-                                terminal.writer().println("Index does not exist. Exiting.");
-                                System.exit(1);
+                                terminal.writer().println("Got IOException while searching the index.");
+                                terminal.writer().println(e.getMessage());
                             }
                         }
+                        else {
+                            terminal.writer().println("Invalid command.");
+                        }
+                    }
+                    else {
+                        SearchRequest request;
+                        try {
+                            request = new SearchRequest(queryType, lang, command, limit, null,
+                                    showDetails, showColors, highlightMode);
+                        }
+                        catch (IllegalArgumentException e) {
+                            terminal.writer().println(e.getMessage());
+                            continue;
+                        }
+                        try {
+                            Page result = backend.search(request);
+                            pageStarts.clear();
+                            pageStarts.add(null);
+                            pageStarts.add(result.next);
+                            pageVersion = result.version;
+                            page = 0;
+                            lastRequest = request;
+                            terminal.writer().print(result.text);
+                        }
                         catch (IOException e) {
-                            terminal.writer().println("Got IOException while opening index directory.");
+                            terminal.writer().println("Got IOException while searching the index.");
                             terminal.writer().println(e.getMessage());
                         }
                     }
@@ -262,19 +367,179 @@ public class Searcher {
             System.err.println("An error has occurred.");
             System.err.println(e.toString());
         }
+        finally {
+            try {
+                backend.close();
+            }
+            catch (IOException e) {
+                System.err.println("An error has occurred.");
+                System.err.println(e.toString());
+            }
+        }
         System.exit(0);
     }
 
-    public static ArrayList<String> analyze(String fieldName, String text, Analyzer analyzer) throws IOException{
-        ArrayList<String> result = new ArrayList<String>();
-        TokenStream tokenStream = analyzer.tokenStream(fieldName, text);
-        CharTermAttribute attr = tokenStream.addAttribute(CharTermAttribute.class);
-        tokenStream.reset();
-        while(tokenStream.incrementToken()) {
-            result.add(attr.toString());
+    /** Uses the search server if one is running, the index directly otherwise.
+     *
+     * @return null if neither is available.
+     */
+    private static Backend openBackend(Path indexPath) {
+        SearchClient client = SearchClient.connect(indexPath);
+        if (client != null) {
+            System.out.println("Using search server on port " + client.port() + ".");
+            return new Backend() {
+                @Override
+                public Page search(SearchRequest request) throws IOException {
+                    return client.console(request);
+                }
+
+                @Override
+                public List<String> complete(String lang, String prefix) {
+                    return client.complete(lang, prefix);
+                }
+
+                @Override
+                public int threads(int threads) throws IOException {
+                    return client.threads(threads);
+                }
+            };
+        }
+        SearchService service = openService(indexPath);
+        if (service == null) {
+            return null;
+        }
+        return new Backend() {
+            @Override
+            public Page search(SearchRequest request) throws IOException {
+                SearchResult result = service.search(request);
+                return new Page(render(request, result), result.next(), result.version());
+            }
+
+            @Override
+            public List<String> complete(String lang, String prefix) {
+                return service.complete(lang, prefix);
+            }
+
+            @Override
+            public void prepare(String lang) {
+                service.prepare(lang);
+            }
+
+            @Override
+            public int threads(int threads) {
+                if (threads > 0) {
+                    service.setThreads(threads);
+                }
+                return service.threads();
+            }
+
+            @Override
+            public void close() throws IOException {
+                service.close();
+            }
+        };
+    }
+
+    /// Reports why the index cannot be searched and returns null if it cannot.
+    static SearchService openService(Path indexPath) {
+        try {
+            return new SearchService(indexPath, IndexerUtils.defaultAnalyzer());
+        }
+        catch (IndexNotFoundException e) {
+            System.err.println("Index does not exist. Exiting.");
+            return null;
+        }
+        catch (IOException e) {
+            System.err.println("Got IOException while opening index directory.");
+            System.err.println(e.getMessage());
+            return null;
         }
-        tokenStream.close();
-        return result;
     }
 
+    /// Runs the search server until the process is terminated.
+    private static void serve(Path indexPath, int port) {
+        long start = System.nanoTime();
+        SearchService service = openService(indexPath);
+        if (service == null) {
+            System.exit(1);
+        }
+        SearchServer server;
+        try {
+            server = new SearchServer(service, indexPath, port, Runtime.getRuntime().availableProcessors());
+            server.start();
+        }
+        catch (IOException e) {
+            System.err.println("Could not start the search server.");
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        for (String lang : AnalyzerRegistry.languages()) {
+            service.prepare(lang);
+        }
+        System.out.println(String.format("Search server listening on port %d (ready in %.0f ms).",
+                server.port(), (System.nanoTime() - start) / 1e6));
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            try {
+                service.close();
+            }
+            catch (IOException e) {
+                // the process is exiting anyway
+            }
+            stopped.countDown();
+        }, "search-server-shutdown"));
+        try {
+            stopped.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Prints @p result the way the console shows it: the number of hits,
+     * then every path followed by its fragments, if details were requested.
+     */
+    static String render(SearchRequest request, SearchResult result) {
+        StringBuilder text = new StringBuilder();
+        String count = Long.toString(result.totalHits());
+        if (!result.isExact()) {
+            count += "+";
+        }
+        text.append(new AttributedStringBuilder()
+                .append("Files count: ")
+                .style(AttributedStyle.DEFAULT.bold())
+                .append(count)
+                .toAnsi()).append(System.lineSeparator());
+        if (request.details() && request.highlightMode() == HighlightMode.COMPARE) {
+            text.append(String.format("Highlighting %d files: offsets %.2f ms, analysis %.2f ms",
+                    result.hits().size(), result.offsetsNanos() / 1e6, result.analysisNanos() / 1e6))
+                    .append(System.lineSeparator());
+        }
+        for (SearchResult.Hit hit : result.hits()) {
+            text.append(new AttributedStringBuilder()
+                    .style(AttributedStyle.DEFAULT.bold())
+                    .append(hit.path() + ":")
+                    .toAnsi()).append(System.lineSeparator());
+            if (hit.fragments() == null) {
+                continue;
+            }
+            for (String fragment : hit.fragments()) {
+                text.append(fragment).append(System.lineSeparator());
+                text.append(new AttributedStringBuilder()
+                        .style(AttributedStyle.DEFAULT.faint())
+                        .append(" ...")
+                        .toAnsi()).append(System.lineSeparator());
+            }
+        }
+        if (result.next() != null) {
+            text.append(new AttributedStringBuilder()
+                    .style(AttributedStyle.DEFAULT.faint())
+                    .append("(%next for more results)")
+                    .toAnsi()).append(System.lineSeparator());
+        }
+        return text.toString();
+    }
 }
@@ -0,0 +1,336 @@
+/** Copyright (c) Robert Michna
+ * rm406247@students.mimuw.edu.pl
+ */
+package pl.edu.mimuw.rm406247.searcher;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermStates;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.FSDirectory;
+import pl.edu.mimuw.rm406247.IndexerUtils;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+
+/** Readers of the main index and of every shard next to it, reopened when they change.
+ * Shards created or deleted by the indexer are noticed on refresh. A Snapshot joins
+ * the current version of all of them: one searcher over their union, used for
+ * highlighting and stored fields, and one searcher per index, used to search them
+ * in parallel. Without shards both are the searcher of the main index, which then
+ * searches slices of its segments in parallel if it is given an executor.
+ */
+class ShardedSearcherManager implements AutoCloseable {
+
+    /** Current versions of all indexes, released together.
+     * Doc ids of the shard searchers are relative to their index, the one of
+     * index i starts at docBase(i) in the union.
+     */
+    static class Snapshot {
+        private final IndexSearcher searcher;
+        private final List<IndexSearcher> shards;
+        private final List<SearcherManager> managers;
+        /// Searchers acquired from the managers, in the same order.
+        private final List<IndexSearcher> acquired;
+        private final int[] docBases;
+        private final long version;
+
+        private Snapshot(IndexSearcher searcher, List<IndexSearcher> shards, List<SearcherManager> managers,
+                         List<IndexSearcher> acquired, int[] docBases, long version) {
+            this.searcher = searcher;
+            this.shards = shards;
+            this.managers = managers;
+            this.acquired = acquired;
+            this.docBases = docBases;
+            this.version = version;
+        }
+
+        /// Searcher of the union of all indexes.
+        IndexSearcher searcher() {
+            return searcher;
+        }
+
+        /// Searchers of the single indexes, scoring with the statistics of the union.
+        List<IndexSearcher> shards() {
+            return shards;
+        }
+
+        int docBase(int shard) {
+            return docBases[shard];
+        }
+
+        /// Changes whenever any of the indexes changes.
+        long version() {
+            return version;
+        }
+    }
+
+    /** Searcher of one index which scores documents with the term and field
+     * statistics of all indexes, so that scores of different shards can be compared.
+     */
+    private static class ShardSearcher extends IndexSearcher {
+        private final IndexSearcher union;
+
+        ShardSearcher(IndexReader reader, IndexSearcher union) {
+            super(reader);
+            this.union = union;
+            setSimilarity(union.getSimilarity());
+        }
+
+        @Override
+        public TermStatistics termStatistics(Term term, TermStates context) throws IOException {
+            return union.termStatistics(term, TermStates.build(union.getTopReaderContext(), term, true));
+        }
+
+        @Override
+        public CollectionStatistics collectionStatistics(String field) throws IOException {
+            return union.collectionStatistics(field);
+        }
+    }
+
+    /** Searcher which searches groups of segments (slices) in parallel on an executor.
+     * Segments are taken from the biggest one, a slice is closed once it holds
+     * -Dsearcher.slice.docs documents (default 250000) or -Dsearcher.slice.segments
+     * segments (default 5), so a segment bigger than that has a slice of its own and
+     * small indexes are searched by a single task.
+     */
+    static class SlicingSearcher extends IndexSearcher {
+        private static final int SLICE_DOCS = Integer.getInteger("searcher.slice.docs", 250000);
+        private static final int SLICE_SEGMENTS = Integer.getInteger("searcher.slice.segments", 5);
+
+        SlicingSearcher(IndexReader reader, ExecutorService executor) {
+            super(reader, executor);
+        }
+
+        @Override
+        protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+            return slice(leaves);
+        }
+
+        static LeafSlice[] slice(List<LeafReaderContext> leaves) {
+            List<LeafReaderContext> sorted = new ArrayList<>(leaves);
+            sorted.sort(Comparator.comparingInt((LeafReaderContext leaf) -> leaf.reader().maxDoc()).reversed());
+            List<LeafSlice> slices = new ArrayList<>();
+            List<LeafReaderContext> slice = new ArrayList<>();
+            long docs = 0;
+            for (LeafReaderContext leaf : sorted) {
+                slice.add(leaf);
+                docs += leaf.reader().maxDoc();
+                if (docs >= SLICE_DOCS || slice.size() >= SLICE_SEGMENTS) {
+                    slices.add(new LeafSlice(slice.toArray(new LeafReaderContext[0])));
+                    slice.clear();
+                    docs = 0;
+                }
+            }
+            if (!slice.isEmpty()) {
+                slices.add(new LeafSlice(slice.toArray(new LeafReaderContext[0])));
+            }
+            return slices.toArray(new LeafSlice[0]);
+        }
+    }
+
+    private final Path shardsPath;
+    private final FSDirectory mainDirectory;
+    private final SearcherManager main;
+    /// Managers of the shards, by directory name.
+    private volatile Map<String, SearcherManager> shards = Collections.emptyMap();
+    private final Map<String, FSDirectory> shardDirectories = new TreeMap<>();
+
+    /**
+     * @throws org.apache.lucene.index.IndexNotFoundException if there is no index at @p indexPath.
+     */
+    ShardedSearcherManager(Path indexPath) throws IOException {
+        this.shardsPath = IndexerUtils.shardsPath(indexPath);
+        this.mainDirectory = FSDirectory.open(indexPath);
+        try {
+            this.main = new SearcherManager(mainDirectory, null);
+        }
+        catch (IOException e) {
+            mainDirectory.close();
+            throw e;
+        }
+        refreshShards();
+    }
+
+    /// Reopens indexes which changed and picks up shards created or deleted since the last call.
+    synchronized void maybeRefresh() throws IOException {
+        main.maybeRefresh();
+        refreshShards();
+        for (SearcherManager shard : shards.values()) {
+            shard.maybeRefresh();
+        }
+    }
+
+    private void refreshShards() {
+        Map<String, SearcherManager> current = new TreeMap<>(shards);
+        List<String> found = new ArrayList<>();
+        if (Files.isDirectory(shardsPath)) {
+            try (DirectoryStream<Path> directories = Files.newDirectoryStream(shardsPath, Files::isDirectory)) {
+                for (Path path : directories) {
+                    found.add(path.getFileName().toString());
+                }
+            }
+            catch (IOException e) {
+                System.err.println("Could not list the shards in " + shardsPath + ".");
+                System.err.println(e.getMessage());
+                return;
+            }
+        }
+        boolean changed = current.keySet().retainAll(found);
+        List<String> deleted = new ArrayList<>(shardDirectories.keySet());
+        deleted.removeAll(current.keySet());
+        for (String name : found) {
+            if (current.containsKey(name)) {
+                continue;
+            }
+            FSDirectory directory = null;
+            try {
+                directory = FSDirectory.open(shardsPath.resolve(name));
+                if (!DirectoryReader.indexExists(directory)) {
+                    directory.close();
+                    continue; // the indexer did not finish creating it yet
+                }
+                current.put(name, new SearcherManager(directory, null));
+                shardDirectories.put(name, directory);
+                changed = true;
+            }
+            catch (IOException e) {
+                close(null, directory);
+                System.err.println("Could not open the shard " + name + ".");
+                System.err.println(e.getMessage());
+            }
+        }
+        Map<String, SearcherManager> previous = shards;
+        if (changed) {
+            shards = Collections.unmodifiableMap(current);
+        }
+        // closed only once new snapshots no longer see them
+        for (String name : deleted) {
+            close(previous.get(name), shardDirectories.remove(name));
+        }
+    }
+
+    /** Acquires the current version of every index.
+     * The snapshot has to be given back with release().
+     */
+    Snapshot acquire() throws IOException {
+        return acquire((ExecutorService) null);
+    }
+
+    /** Acquires the current version of every index, searching slices of the
+     * main index on @p executor when there are no shards and the index has more
+     * than one slice. Shards are not sliced, they are searched in parallel instead.
+     * The snapshot has to be given back with release().
+     */
+    Snapshot acquire(ExecutorService executor) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return acquire(shards, executor);
+            }
+            catch (AlreadyClosedException e) {
+                if (attempt == 2) {
+                    throw e;
+                }
+                // a deleted shard was closed meanwhile, the next attempt does not see it
+            }
+        }
+    }
+
+    private Snapshot acquire(Map<String, SearcherManager> shards, ExecutorService executor) throws IOException {
+        List<SearcherManager> managers = new ArrayList<>();
+        managers.add(main);
+        managers.addAll(shards.values());
+        List<IndexSearcher> acquired = new ArrayList<>();
+        try {
+            for (SearcherManager manager : managers) {
+                acquired.add(manager.acquire());
+            }
+            if (acquired.size() == 1) {
+                IndexSearcher searcher = acquired.get(0);
+                IndexReader reader = searcher.getIndexReader();
+                if (executor != null && SlicingSearcher.slice(reader.leaves()).length > 1) {
+                    searcher = new SlicingSearcher(reader, executor);
+                }
+                return new Snapshot(searcher, Collections.singletonList(searcher), managers, acquired,
+                        new int[] {0}, ((DirectoryReader) reader).getVersion());
+            }
+            IndexReader[] readers = new IndexReader[acquired.size()];
+            int[] docBases = new int[acquired.size()];
+            long version = 17;
+            int docBase = 0;
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = acquired.get(i).getIndexReader();
+                docBases[i] = docBase;
+                docBase += readers[i].maxDoc();
+                version = 31 * version + ((DirectoryReader) readers[i]).getVersion();
+            }
+            for (String name : shards.keySet()) {
+                version = 31 * version + name.hashCode();
+            }
+            IndexSearcher union = new IndexSearcher(new MultiReader(readers, false));
+            List<IndexSearcher> shardSearchers = new ArrayList<>();
+            for (IndexReader reader : readers) {
+                shardSearchers.add(new ShardSearcher(reader, union));
+            }
+            return new Snapshot(union, shardSearchers, managers, acquired, docBases, version);
+        }
+        catch (IOException | RuntimeException e) {
+            for (int i = 0; i < acquired.size(); i++) {
+                managers.get(i).release(acquired.get(i));
+            }
+            throw e;
+        }
+    }
+
+    void release(Snapshot snapshot) throws IOException {
+        if (snapshot.acquired.size() > 1) {
+            snapshot.searcher.getIndexReader().close();
+        }
+        for (int i = 0; i < snapshot.acquired.size(); i++) {
+            snapshot.managers.get(i).release(snapshot.acquired.get(i));
+        }
+    }
+
+    private static void close(SearcherManager manager, FSDirectory directory) {
+        try {
+            if (manager != null) {
+                manager.close();
+            }
+            if (directory != null) {
+                directory.close();
+            }
+        }
+        catch (IOException e) {
+            // the shard is gone anyway
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (String name : shardDirectories.keySet()) {
+            close(shards.get(name), shardDirectories.get(name));
+        }
+        try {
+            main.close();
+        }
+        finally {
+            mainDirectory.close();
+        }
+    }
+}
@@ -1,75 +1,182 @@
 package pl.edu.mimuw.rm406247.searcher;
 
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.search.spell.LuceneDictionary;
+import org.apache.lucene.search.spell.HighFrequencyDictionary;
 import org.apache.lucene.search.suggest.Lookup;
-import org.apache.lucene.search.suggest.analyzing.AnalyzingInfixSuggester;
+import org.apache.lucene.search.suggest.fst.WFSTCompletionLookup;
 import org.apache.lucene.store.FSDirectory;
-import org.jline.reader.Candidate;
-import org.jline.reader.Completer;
-import org.jline.reader.LineReader;
-import org.jline.reader.ParsedLine;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
-public class TermCompleter implements Completer {
+/** Completes words from the terms of the words field of a language, which holds
+ * them as they are written (the body field holds stems). Indexes created before
+ * that field existed complete from the body field instead.
+ * Terms are kept in a weighted FST (weight = number of documents containing
+ * the term) built for one index version. The FST is saved in the suggest/
+ * directory next to the index, so the next session only has to load it.
+ * When the index changes, the new FST is built in the background and
+ * the previous one keeps answering until it is ready. A watcher commits every
+ * few seconds, so an FST is rebuilt at most once per -Dsearcher.complete.interval
+ * seconds (default 60), answering for a slightly older index meanwhile.
+ */
+public class TermCompleter {
 
-    private final Analyzer analyzer;
-    private final Path indexPath;
+    private static final int MAX_CANDIDATES = 30;
+    private static final long REBUILD_INTERVAL = TimeUnit.SECONDS.toMillis(
+            Math.max(0, Integer.getInteger("searcher.complete.interval", 60)));
 
-    public TermCompleter(Path indexPath, Analyzer analyzer) {
-        this.analyzer = analyzer;
-        this.indexPath = indexPath;
+    private final Path suggestPath;
+    private final ShardedSearcherManager searcherManager;
+    private final ExecutorService builder;
+    private final Map<String, Lookup> lookups = new ConcurrentHashMap<>();
+    private final Map<String, Long> versions = new ConcurrentHashMap<>();
+    /// When the lookup of a field was last replaced, in milliseconds.
+    private final Map<String, Long> updated = new ConcurrentHashMap<>();
+    private final Map<String, Long> building = new ConcurrentHashMap<>();
+
+    TermCompleter(Path indexPath, ShardedSearcherManager searcherManager) {
+        this.suggestPath = indexPath.resolve("suggest");
+        this.searcherManager = searcherManager;
+        this.builder = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "suggester-builder");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
-    /**
-     * Populates <i>candidates</i> with a list of possible completions for the <i>command line</i>.
-     *
-     * The list of candidates will be sorted and filtered by the LineReader, so that
-     * the list of candidates displayed to the user will usually be smaller than
-     * the list given by the completer.  Thus it is not necessary for the completer
-     * to do any matching based on the current buffer.  On the contrary, in order
-     * for the typo matcher to work, all possible candidates for the word being
-     * completed should be returned.
-     *
-     * @param reader        The line reader
-     * @param line          The parsed command line
-     * @param candidates    The {@link List} of candidates to populate
+    /** Makes sure the suggester of @p lang matches the current index version,
+     * loading or building it in the background if it does not and the current
+     * one is older than REBUILD_INTERVAL.
      */
-    @Override
-    public void complete(LineReader reader, ParsedLine line, List<Candidate> candidates) {
-        /*
-        try (FSDirectory indexDir = FSDirectory.open(indexPath)) {
-            try (IndexReader indexReader = DirectoryReader.open(indexDir)) {
-                String term = line.word();
-                AnalyzingInfixSuggester suggester;
-                List<Lookup.LookupResult> results;
-                try {
-                    suggester = new AnalyzingInfixSuggester(indexDir, analyzer);
-                    suggester.build(new LuceneDictionary(indexReader, "body-pl"));
-                    results = suggester.lookup(term, 30, true, false);
+    public void prepare(String lang) {
+        String field = "words-" + lang;
+        long version;
+        try {
+            ShardedSearcherManager.Snapshot snapshot = searcherManager.acquire();
+            try {
+                version = snapshot.version();
+            }
+            finally {
+                searcherManager.release(snapshot);
+            }
+        }
+        catch (IOException e) {
+            return;
+        }
+        Long current = versions.get(field);
+        if (current != null && current == version) {
+            return;
+        }
+        Long since = updated.get(field);
+        if (current != null && since != null && System.currentTimeMillis() - since < REBUILD_INTERVAL) {
+            return; // the index changed only recently, possibly not for the last time
+        }
+        Long scheduled = building.put(field, version);
+        if (scheduled != null && scheduled == version) {
+            return;
+        }
+        builder.execute(() -> update(field, version));
+    }
+
+    private void update(String field, long version) {
+        Long wanted = building.get(field);
+        if (wanted == null || wanted != version) {
+            return; // a newer version was requested meanwhile
+        }
+        Path file = suggestPath.resolve(field + "-" + version + ".fst");
+        try {
+            Files.createDirectories(suggestPath);
+            try (FSDirectory tempDir = FSDirectory.open(suggestPath)) {
+                Lookup lookup = new WFSTCompletionLookup(tempDir, "build");
+                if (Files.isReadable(file)) {
+                    try (InputStream in = Files.newInputStream(file)) {
+                        lookup.load(in);
+                    }
                 }
-                catch (IOException e) {
-                    System.err.println(e);
-                    return;
+                else {
+                    build(lookup, field, version);
+                    try (OutputStream out = Files.newOutputStream(file)) {
+                        lookup.store(out);
+                    }
+                    removeStale(field, file);
                 }
-                for (Lookup.LookupResult result : results) {
-                    System.err.println(result.key.toString());
-                    candidates.add(new Candidate(result.key.toString()));
+                lookups.put(field, lookup);
+                versions.put(field, version);
+                updated.put(field, System.currentTimeMillis());
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Could not prepare completions for " + field + ".");
+            System.err.println(e.getMessage());
+        }
+        finally {
+            building.remove(field, version);
+        }
+    }
+
+    private void build(Lookup lookup, String field, long version) throws IOException {
+        ShardedSearcherManager.Snapshot snapshot = searcherManager.acquire();
+        try {
+            if (snapshot.version() != version) {
+                throw new IOException("Index changed while building completions.");
+            }
+            IndexReader reader = snapshot.searcher().getIndexReader();
+            String source = field;
+            if (reader.getDocCount(field) == 0) {
+                source = "body-" + field.substring("words-".length()); // index created before the words field
+            }
+            lookup.build(new HighFrequencyDictionary(reader, source, 0f));
+        }
+        finally {
+            searcherManager.release(snapshot);
+        }
+    }
+
+    private void removeStale(String field, Path keep) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(suggestPath, field + "-*.fst")) {
+            for (Path file : files) {
+                if (!file.equals(keep)) {
+                    Files.deleteIfExists(file);
                 }
             }
-            catch (IOException e) {
-                // ignore
-                System.err.println(e);
+        }
+        catch (IOException e) {
+            // stale files only waste space
+        }
+    }
+
+    /** Terms of documents in @p lang starting with @p prefix, most frequent first.
+     * Empty while the suggester of @p lang is not ready yet.
+     */
+    public List<String> complete(String lang, String prefix) {
+        prepare(lang);
+        Lookup lookup = lookups.get("words-" + lang);
+        if (lookup == null) {
+            return Collections.emptyList(); // not ready yet
+        }
+        List<String> result = new ArrayList<>();
+        try {
+            for (Lookup.LookupResult candidate : lookup.lookup(prefix.toLowerCase(Locale.ROOT), false, MAX_CANDIDATES)) {
+                result.add(candidate.key.toString());
             }
         }
         catch (IOException e) {
-            // ignore
-            System.err.println(e);
-        }*/
+            // no completions
+        }
+        return result;
     }
-}
\ No newline at end of file
+}
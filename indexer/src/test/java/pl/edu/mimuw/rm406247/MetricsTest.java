@@ -0,0 +1,29 @@
+package pl.edu.mimuw.rm406247;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetricsTest {
+
+    @Test
+    public void bucketsCoverEveryDuration() {
+        for (long nanos : new long[] {0, 1, 3, 4, 5, 7, 8, 1000, 123456789, Long.MAX_VALUE / 2}) {
+            int bucket = Metrics.Timer.bucket(nanos);
+            Assert.assertTrue(nanos <= Metrics.Timer.upperBound(bucket));
+            Assert.assertTrue(bucket == 0 || nanos > Metrics.Timer.upperBound(bucket - 1));
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinAQuarter() {
+        Metrics.Timer timer = Metrics.timer("test.percentiles");
+        for (int i = 1; i <= 1000; i++) {
+            timer.record(i * 1000L);
+        }
+        Assert.assertEquals(1000, timer.getCount());
+        Assert.assertEquals(1.0, timer.getMaxMillis(), 1e-9);
+        Assert.assertEquals(0.5, timer.getMedianMillis(), 0.5 * 0.25);
+        Assert.assertEquals(0.99, timer.get99thPercentileMillis(), 0.99 * 0.25);
+        Assert.assertTrue(Metrics.report().contains("test.percentiles: 1000"));
+    }
+}
@@ -0,0 +1,52 @@
+package pl.edu.mimuw.rm406247.indexer;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class FileClassifierTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path write(String name, byte[] content) throws Exception {
+        Path path = folder.getRoot().toPath().resolve(name);
+        Files.write(path, content);
+        return path;
+    }
+
+    @Test
+    public void acceptsByExtension() throws Exception {
+        Path path = write("notes.txt", "some text".getBytes(StandardCharsets.UTF_8));
+        Assert.assertTrue(FileClassifier.get().isIndexable(path));
+    }
+
+    @Test
+    public void rejectsByExtension() throws Exception {
+        Path path = write("page.html", "<html></html>".getBytes(StandardCharsets.UTF_8));
+        Assert.assertFalse(FileClassifier.get().isIndexable(path));
+    }
+
+    @Test
+    public void recognisesPdfWithoutExtension() throws Exception {
+        Path path = write("document", "%PDF-1.4\n".getBytes(StandardCharsets.US_ASCII));
+        Assert.assertTrue(FileClassifier.get().isIndexable(path));
+    }
+
+    @Test
+    public void rejectsBinaryWithoutExtension() throws Exception {
+        Path path = write("data", new byte[] {1, 2, 0, 3});
+        Assert.assertFalse(FileClassifier.get().isIndexable(path));
+    }
+
+    @Test
+    public void fallsBackToTikaForPlainText() throws Exception {
+        Path path = write("README", "plain text without extension".getBytes(StandardCharsets.UTF_8));
+        Assert.assertTrue(FileClassifier.get().isIndexable(path));
+    }
+}
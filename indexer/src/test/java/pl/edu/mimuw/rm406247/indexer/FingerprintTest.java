@@ -0,0 +1,55 @@
+package pl.edu.mimuw.rm406247.indexer;
+
+import org.apache.lucene.document.Document;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+public class FingerprintTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path write(String name, String content) throws Exception {
+        Path path = folder.getRoot().toPath().resolve(name);
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+
+    @Test
+    public void storedFingerprintMatchesUnchangedFile() throws Exception {
+        Path path = write("a.txt", "some text");
+        Document document = new Document();
+        Fingerprint.of(path, false).addTo(document);
+        Assert.assertTrue(Fingerprint.of(document).matches(path, false));
+    }
+
+    @Test
+    public void modifiedFileDoesNotMatch() throws Exception {
+        Path path = write("a.txt", "some text");
+        Fingerprint fingerprint = Fingerprint.of(path, false);
+        write("a.txt", "some other text");
+        Assert.assertFalse(fingerprint.matches(path, false));
+    }
+
+    @Test
+    public void touchedFileMatchesByHash() throws Exception {
+        Path path = write("a.txt", "some text");
+        Fingerprint fingerprint = Fingerprint.of(path, true);
+        Files.setLastModifiedTime(path, FileTime.fromMillis(0));
+        Assert.assertFalse(fingerprint.matches(path, false));
+        Assert.assertTrue(fingerprint.matches(path, true));
+    }
+
+    @Test
+    public void documentWithoutFingerprintNeverMatches() throws Exception {
+        Path path = write("a.txt", "some text");
+        Assert.assertFalse(Fingerprint.of(new Document()).matches(path, true));
+    }
+}
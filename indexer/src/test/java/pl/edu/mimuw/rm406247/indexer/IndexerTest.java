@@ -3,14 +3,24 @@ package pl.edu.mimuw.rm406247.indexer;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import pl.edu.mimuw.rm406247.Metrics;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 
 public class IndexerTest {
     private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Before
     public void setUp() throws Exception {
         System.setOut(new PrintStream(outContent));
@@ -29,6 +39,29 @@ public class IndexerTest {
         Assert.assertTrue(type2.contains("opendocument.text"));
     }
 
+    @Test
+    public void touchedFileIsHashedOnlyOnce() throws Exception {
+        Path index = folder.newFolder("index").toPath();
+        Path docs = folder.newFolder("docs").toPath();
+        Path file = docs.resolve("a.txt");
+        Files.write(file, "some text".getBytes(StandardCharsets.UTF_8));
+        Metrics.Counter hashes = Metrics.counter("indexer.hashes");
+        System.setProperty("indexer.hash", "true");
+        try (Indexer indexer = new Indexer(index)) {
+            indexer.add(docs);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() - 60000));
+            long before = hashes.getCount();
+            indexer.reconcile(docs);
+            Assert.assertEquals(before + 1, hashes.getCount());
+            Assert.assertFalse(outContent.toString().contains("Updating"));
+            indexer.reconcile(docs);
+            Assert.assertEquals(before + 1, hashes.getCount());
+        }
+        finally {
+            System.clearProperty("indexer.hash");
+        }
+    }
+
     private String run(String args[]) {
         outContent.reset();
         IndexerMain.main(args);
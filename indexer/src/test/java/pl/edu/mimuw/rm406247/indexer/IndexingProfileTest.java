@@ -0,0 +1,40 @@
+package pl.edu.mimuw.rm406247.indexer;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IndexingProfileTest {
+
+    @Test
+    public void commandsWritingManyDocumentsAreBulk() {
+        Assert.assertEquals(IndexingProfile.BULK, IndexingProfile.forCommand(new String[] {"--add", "/a"}));
+        Assert.assertEquals(IndexingProfile.BULK, IndexingProfile.forCommand(new String[] {"--reindex"}));
+        Assert.assertEquals(IndexingProfile.LIVE, IndexingProfile.forCommand(new String[] {"--rm", "/a"}));
+        Assert.assertEquals(IndexingProfile.LIVE, IndexingProfile.forCommand(new String[0]));
+    }
+
+    @Test
+    public void onlyBulkWritesAreMerged() {
+        Assert.assertTrue(IndexingProfile.mergesAfter(new String[] {"--add", "/a"}));
+        Assert.assertTrue(IndexingProfile.mergesAfter(new String[] {"--reindex"}));
+        Assert.assertFalse(IndexingProfile.mergesAfter(new String[] {"--list"}));
+        Assert.assertFalse(IndexingProfile.mergesAfter(new String[] {"--rm", "/a"}));
+        Assert.assertFalse(IndexingProfile.mergesAfter(new String[] {"--purge"}));
+    }
+
+    @Test
+    public void bulkBuffersMoreThanLive() {
+        IndexWriterConfig bulk = IndexingProfile.BULK.configure(new IndexWriterConfig(new StandardAnalyzer()));
+        IndexWriterConfig live = IndexingProfile.LIVE.configure(new IndexWriterConfig(new StandardAnalyzer()));
+        Assert.assertTrue(bulk.getRAMBufferSizeMB() > live.getRAMBufferSizeMB());
+        Assert.assertFalse(bulk.getUseCompoundFile());
+        Assert.assertTrue(live.getUseCompoundFile());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownProfileIsRejected() {
+        IndexingProfile.parse("fast");
+    }
+}
@@ -0,0 +1,80 @@
+package pl.edu.mimuw.rm406247.indexer;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ParallelCrawlerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path tree() throws IOException {
+        Path root = folder.getRoot().toPath();
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 4; j++) {
+                Path dir = root.resolve("d" + i).resolve("e" + j);
+                Files.createDirectories(dir);
+                Files.createFile(dir.resolve("f.txt"));
+            }
+            Files.createFile(root.resolve("d" + i).resolve("g.txt"));
+        }
+        return root;
+    }
+
+    @Test
+    public void crawlVisitsTheFilesOfWalkFileTree() throws IOException {
+        Path root = tree();
+        Set<Path> walked = new HashSet<>();
+        Files.walkFileTree(root, new IndexingVisitor(walked::add));
+        Set<Path> crawled = ConcurrentHashMap.newKeySet();
+        try (ParallelCrawler crawler = new ParallelCrawler(4)) {
+            ParallelCrawler.Stats stats = crawler.crawl(root, new IndexingVisitor(crawled::add));
+            Assert.assertEquals(walked, crawled);
+            Assert.assertEquals(1 + 5 + 5 * 4, stats.directories());
+            Assert.assertEquals(5 * 4 + 5, stats.files());
+        }
+    }
+
+    @Test
+    public void skippedSubtreesAreNotListed() throws IOException {
+        Path root = tree();
+        Set<Path> crawled = ConcurrentHashMap.newKeySet();
+        try (ParallelCrawler crawler = new ParallelCrawler(4)) {
+            crawler.crawl(root, new IndexingVisitor(crawled::add) {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    return dir.getFileName().toString().equals("d0")
+                            ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        Assert.assertEquals(4 * 4 + 4, crawled.size());
+        for (Path file : crawled) {
+            Assert.assertFalse(file.startsWith(root.resolve("d0")));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void exceptionOfTheVisitorEndsTheCrawl() throws IOException {
+        Path root = tree();
+        try (ParallelCrawler crawler = new ParallelCrawler(4)) {
+            crawler.crawl(root, new IndexingVisitor(file -> {}) {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    throw new IOException("cannot watch " + dir);
+                }
+            });
+        }
+    }
+}
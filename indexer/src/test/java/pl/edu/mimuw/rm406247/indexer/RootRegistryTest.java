@@ -0,0 +1,59 @@
+package pl.edu.mimuw.rm406247.indexer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Map;
+
+public class RootRegistryTest {
+
+    @Test
+    public void rootsSurviveCommitData() {
+        Path root = Paths.get("/tmp/some dir/with spaces").toAbsolutePath();
+        RootRegistry registry = RootRegistry.of(Collections.emptyMap());
+        registry.put(root, new RootRegistry.State(1234, 56));
+        Map<String, String> data = registry.takeCommitData();
+
+        Assert.assertTrue(RootRegistry.isStoredIn(data));
+        RootRegistry restored = RootRegistry.of(data);
+        Assert.assertEquals(Collections.singletonList(root), restored.roots());
+        Assert.assertEquals(1234, restored.state(root).lastScan());
+        Assert.assertEquals(56, restored.state(root).documents());
+    }
+
+    @Test
+    public void unchangedRegistryIsNotSavedAgain() {
+        RootRegistry registry = RootRegistry.of(Collections.emptyMap());
+        registry.put(Paths.get("/a").toAbsolutePath(), RootRegistry.State.UNKNOWN);
+        Assert.assertNotNull(registry.takeCommitData());
+        Assert.assertNull(registry.takeCommitData());
+        Assert.assertFalse(registry.remove(Paths.get("/b").toAbsolutePath()));
+        Assert.assertNotNull(registry.takeCommitData());
+    }
+
+    @Test
+    public void emptyRegistryIsStillMarkedAsStored() {
+        RootRegistry registry = RootRegistry.of(Collections.emptyMap());
+        registry.clear();
+        Map<String, String> data = registry.takeCommitData();
+        Assert.assertTrue(RootRegistry.isStoredIn(data));
+        Assert.assertTrue(RootRegistry.of(data).roots().isEmpty());
+    }
+
+    @Test
+    public void checkpointSurvivesCommitDataUntilCleared() {
+        Path root = Paths.get("/a").toAbsolutePath();
+        RootRegistry registry = RootRegistry.of(Collections.emptyMap());
+        registry.put(root, RootRegistry.State.UNKNOWN);
+        registry.setCheckpoint(new RootRegistry.Checkpoint(root, root.resolve("b/c.txt")));
+        RootRegistry restored = RootRegistry.of(registry.takeCommitData());
+        Assert.assertEquals(root, restored.checkpoint().root());
+        Assert.assertEquals(root.resolve("b/c.txt"), restored.checkpoint().position());
+
+        restored.setCheckpoint(null);
+        Assert.assertNull(RootRegistry.of(restored.takeCommitData()).checkpoint());
+    }
+}
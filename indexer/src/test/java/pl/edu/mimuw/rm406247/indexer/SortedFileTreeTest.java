@@ -0,0 +1,40 @@
+package pl.edu.mimuw.rm406247.indexer;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SortedFileTreeTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void filesAreVisitedInTheOrderOfCompare() throws IOException {
+        Path root = folder.getRoot().toPath();
+        // "a-c" sorts before "a/b" as a string, but the walk enters directory "a" first
+        for (String name : Arrays.asList("a-c", "a/b", "a/a/z", "b", "a0")) {
+            Path file = root.resolve(name);
+            Files.createDirectories(file.getParent());
+            Files.createFile(file);
+        }
+        List<Path> visited = new ArrayList<>();
+        SortedFileTree.walk(root, new IndexingVisitor(visited::add));
+        List<Path> expected = new ArrayList<>();
+        for (String name : Arrays.asList("a/a/z", "a/b", "a-c", "a0", "b")) {
+            expected.add(root.resolve(name));
+        }
+        Assert.assertEquals(expected, visited);
+        for (int i = 1; i < visited.size(); i++) {
+            Assert.assertTrue(SortedFileTree.compare(visited.get(i - 1), visited.get(i)) < 0);
+        }
+    }
+}
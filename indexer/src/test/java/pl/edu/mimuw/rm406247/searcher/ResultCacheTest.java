@@ -0,0 +1,47 @@
+package pl.edu.mimuw.rm406247.searcher;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class ResultCacheTest {
+
+    private static ResultCache.Key key(String term) {
+        SearchRequest request = new SearchRequest(Searcher.QueryType.TERM, "en", term, 10, null,
+                false, false, Searcher.HighlightMode.OFFSETS);
+        return new ResultCache.Key(new TermQuery(new Term("body-en", term)), request);
+    }
+
+    private static SearchResult result(int hits) {
+        SearchResult.Hit hit = new SearchResult.Hit("/a", 1, null);
+        return new SearchResult(hits, true, Collections.nCopies(hits, hit), null, 0, 0, 0, 0);
+    }
+
+    @Test
+    public void newVersionOfTheIndexInvalidatesResults() {
+        ResultCache cache = new ResultCache(100);
+        Assert.assertNull(cache.get(1, key("fox")));
+        cache.put(1, key("fox"), result(1));
+        Assert.assertNotNull(cache.get(1, key("fox")));
+        Assert.assertNull(cache.get(2, key("fox")));
+    }
+
+    @Test
+    public void leastRecentlyUsedResultsAreEvicted() {
+        ResultCache cache = new ResultCache(3);
+        for (String term : Arrays.asList("a", "b", "c")) {
+            cache.get(1, key(term));
+            cache.put(1, key(term), result(1));
+        }
+        cache.get(1, key("a"));
+        cache.put(1, key("d"), result(1));
+        Assert.assertNotNull(cache.get(1, key("a")));
+        Assert.assertNull(cache.get(1, key("b")));
+        cache.put(1, key("e"), result(4));
+        Assert.assertNull(cache.get(1, key("e")));
+    }
+}
@@ -0,0 +1,71 @@
+package pl.edu.mimuw.rm406247.searcher;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.Assert;
+import org.junit.Test;
+import pl.edu.mimuw.rm406247.IndexerUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class SearchServiceTest {
+
+    private static TopDocs topDocs(TotalHits.Relation relation, ScoreDoc... scoreDocs) {
+        return new TopDocs(new TotalHits(scoreDocs.length, relation), scoreDocs);
+    }
+
+    @Test
+    public void mergeBreaksTiesByDocWhateverTheOrderOfParts() {
+        // slices hold segments from the biggest one, not in the order of their doc ids
+        TopDocs later = topDocs(TotalHits.Relation.EQUAL_TO, new ScoreDoc(7, 2f), new ScoreDoc(9, 1f));
+        TopDocs earlier = topDocs(TotalHits.Relation.EQUAL_TO, new ScoreDoc(3, 1f), new ScoreDoc(4, 1f));
+        TopDocs merged = SearchService.merge(3, Arrays.asList(later, earlier));
+        Assert.assertEquals(3, merged.scoreDocs.length);
+        Assert.assertEquals(7, merged.scoreDocs[0].doc);
+        Assert.assertEquals(3, merged.scoreDocs[1].doc);
+        Assert.assertEquals(4, merged.scoreDocs[2].doc);
+        Assert.assertEquals(4, merged.totalHits.value);
+        Assert.assertEquals(TotalHits.Relation.EQUAL_TO, merged.totalHits.relation);
+    }
+
+    @Test
+    public void mergeIsALowerBoundIfAnyPartIs() {
+        TopDocs exact = topDocs(TotalHits.Relation.EQUAL_TO, new ScoreDoc(1, 1f));
+        TopDocs bound = topDocs(TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO, new ScoreDoc(2, 1f));
+        TopDocs merged = SearchService.merge(10, Arrays.asList(exact, bound));
+        Assert.assertEquals(2, merged.scoreDocs.length);
+        Assert.assertEquals(TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO, merged.totalHits.relation);
+    }
+
+    @Test
+    public void prefixOfALegacyIndexStopsAtTheDirectory() throws IOException {
+        // documents indexed before ancestor terms existed have their path only
+        Directory directory = new ByteBuffersDirectory();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(IndexerUtils.defaultAnalyzer()))) {
+            for (String path : new String[] {"/a/b", "/a/b/c.txt", "/a/bc.txt"}) {
+                Document document = new Document();
+                document.add(new StringField("path", path, Field.Store.YES));
+                writer.addDocument(document);
+            }
+        }
+        try (IndexReader reader = DirectoryReader.open(directory)) {
+            Assert.assertTrue(SearchService.hasLegacyPaths(reader));
+            Query query = SearchService.buildQuery(Searcher.QueryType.PREFIX, "en", "/a/b",
+                    IndexerUtils.defaultAnalyzer(), true);
+            Assert.assertEquals(2, new IndexSearcher(reader).count(query));
+        }
+    }
+}